@@ -0,0 +1,97 @@
+package cryptix.alg.chacha;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import cryptix.X;
+
+/**
+ * <p>
+ * Crypt a sequence of buffers as one stream, for regions too large for
+ * one buffer (or one int length):  a file or shared memory over 2GB is
+ * mapped as several windows, and the windows are crypted end to end as
+ * if they were one.  The input and output sequences may be split at
+ * different places;  a block that straddles a split is computed once
+ * and its keystream used on both sides.
+ * </p><p>
+ * The buffers are read and written where they lie, direct or heap,
+ * through the cores' buffer calls, and nothing is copied through
+ * the heap but the keystream of a straddling block.
+ * </p>
+ */
+final class BufferSequence
+{
+    private BufferSequence() { }
+
+    /** A keyed cipher positioned at a block boundary of its stream. */
+    static abstract class Cipher
+    {
+        /** XOR len bytes, a multiple of the block size, at absolute positions. */
+        abstract void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len);
+        /** The next block of keystream into block[0..63]. */
+        abstract void keystream(byte[] block);
+    }
+
+    /** @return the total remaining() bytes of the buffers */
+    static long remaining(ByteBuffer[] buffers)
+    {
+        long total = 0;
+        for (ByteBuffer b : buffers)
+            total += b.remaining();
+        return total;
+    }
+
+    /**
+     * XOR all the remaining bytes of the in buffers, in order, with the
+     * stream of cipher into the out buffers, in order.  Positions advance
+     * by the amount processed, limits are not changed.
+     * The same buffers may be given as in and out to crypt in place.
+     *
+     * @return the number of bytes processed
+     * @throws BufferOverflowException if out has less room than in has bytes
+     */
+    static long xor(ByteBuffer[] out, ByteBuffer[] in, Cipher cipher)
+    {
+        final long total = remaining(in);
+        if (remaining(out) < total)
+            throw new BufferOverflowException();
+
+        final int size = ChaCha.OUTPUT_BLOCK_SIZE;
+        byte[] block = new byte[size];
+        int used = size;                         // of block[]
+        long done = 0;
+        int i = 0, j = 0;
+        while (done < total) {
+            while (!in[i].hasRemaining())
+                i++;
+            while (!out[j].hasRemaining())
+                j++;
+            ByteBuffer a = in[i], b = out[j];
+            final int inPos  = a.position();
+            final int outPos = b.position();
+            int n = Math.min(a.remaining(), b.remaining());
+
+            if (used < size) {                   // the rest of a straddling block
+                n = Math.min(n, size - used);
+                for (int k = 0; k < n; k++)
+                    b.put(outPos + k, (byte) (a.get(inPos + k) ^ block[used + k]));
+                used += n;
+            } else if (n >= size) {              // whole blocks in place
+                n &= ~(size - 1);
+                cipher.xor(a, inPos, b, outPos, n);
+            } else {                             // a block across a split
+                cipher.keystream(block);
+                for (int k = 0; k < n; k++)
+                    b.put(outPos + k, (byte) (a.get(inPos + k) ^ block[k]));
+                used = n;
+            }
+
+            a.position(inPos + n);
+            if (b != a)
+                b.position(outPos + n);
+            done += n;
+        }
+        X.destroy(block);
+        return done;
+    }
+}
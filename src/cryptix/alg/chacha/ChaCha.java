@@ -1,6 +1,10 @@
 package cryptix.alg.chacha;
  
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import cryptix.Support;
 import cryptix.X;
 
@@ -105,8 +109,6 @@ import cryptix.X;
  * <ul>
  * <li>Finish merge/extend with Salsa.
  * <li>Look at other implementations to see if we are missing a trick.
- * <li>We should maybe unroll the double matrix into an array for speed.
- * <li>Write a cryptor...
  * </ul>
  * 
  * <h2>Interesting Info</h2>
@@ -131,7 +133,8 @@ import cryptix.X;
  *      efficient than Salsa20 on modern Intel CPUs.</li>
  * </ul>
  * @author AdaLovelace561
- * @see ChaChaVectors.java, MySalsa.java
+ * @see ChaChaVectors.java, MySalsa.java, ChaChaCore.java
+ * @see ChaChaEngine for a stateful cryptor over arbitrary offsets
  */
 public class ChaCha
     // MySalsa extends from this class (as ChaCha is the recommended one)
@@ -240,8 +243,8 @@ public class ChaCha
     public static long bc2long(byte[] blockcounter){
         long bc = 0;
         for(int i = BLOCKCOUNTER_LENGTH-1; i >= 0; i--){
-            bc |= blockcounter[i];
             bc <<= 8;
+            bc |= blockcounter[i] & BYTE_M;
         }
         return bc;
     }
@@ -275,15 +278,140 @@ public class ChaCha
      */
 	public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] iv, byte[] blockcounter, byte[] key, final int rounds){
 
-	    int[][] matrix;
-		matrix = get_context(iv, blockcounter, key);
+	    int[] state = ChaChaCore.newState(key, iv, blockcounter);
+	    int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+
+	    ChaChaCore.xor(state, x, xorme, 0, returnme, 0, xorlen, rounds);
 
-		crypt(matrix, returnme, xorme, xorlen, rounds);
+	    ChaChaCore.destroy(state);
+	    ChaChaCore.destroy(x);
 	}
 	
 	/**
-	 * WIP - a start at initialization context, an object is needed
-	 * later for Cryptor.
+	 * Random access into the stream:  crypt xorlen bytes as they fall at
+	 * any byte offset of the stream that starts at blockcounter 0.
+	 * The blockcounter is derived from the offset, and the front of the
+	 * first block skipped, so only the range itself is computed.
+	 * For example, to serve a byte range of a large encrypted file.
+	 * 
+	 * <p>Note that offset is a byte count, unlike the blockcounter
+	 * taken by the other calls.</p>
+	 * 
+	 * @param returnme is the output, written from returnOff
+	 * @param returnOff
+	 * @param xorme is the input, read from xorOff
+	 * @param xorOff
+	 * @param xorlen
+	 * @param iv
+	 * @param offset is the position in the stream of xorme[xorOff], in bytes
+	 * @param key is 16b/128bits or 32b/256bits (recommended)
+	 * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+	 */
+	public static void crypto_stream_xor_at(byte[] returnme, int returnOff, byte[] xorme, int xorOff, int xorlen,
+	                                        byte[] iv, long offset, byte[] key, final int rounds){
+	    ChaChaEngine engine = new ChaChaEngine(rounds);
+	    try {
+	        engine.init(key, iv, 0);
+	        engine.seek(offset);
+	        engine.processBytes(xorme, xorOff, xorlen, returnme, returnOff);
+	    } finally {
+	        engine.close();
+	    }
+	}
+
+	/**
+	 * Easy call for buffers.
+	 * Sets up a blockcounter == 0 and calls the following method.
+	 * Rounds is set to CHACHA20 (as recommended).
+	 * 
+	 * @param returnme is the output, gets the input xor'd with the cipherstream
+	 * @param xorme is the input, all of its remaining bytes are processed
+	 * @param iv
+	 * @param key is 16b/128bits or 32b/256bits (later is recommended)
+	 */
+	public static void crypto_stream_xor(ByteBuffer returnme, ByteBuffer xorme, byte[] iv, byte[] key){
+	    byte[] blockcounter = new byte[BLOCKCOUNTER_LENGTH];
+	    crypto_stream_xor(returnme, xorme, iv, blockcounter, key, CHACHA20);
+	}
+
+	/**
+	 * Full call for buffers, heap or direct, so that NIO data can be
+	 * crypted where it lies.
+	 * The remaining() bytes of xorme, from its position, are xor'd with the
+	 * cipherstream into returnme from its position, and both positions
+	 * are advanced by that amount.  Limits are respected and not changed.
+	 * The two may be the same buffer, which crypts in place.
+	 * 
+	 * @param returnme is the output, must have at least xorme.remaining() bytes remaining
+	 * @param xorme is the input, unchanged unless it is also returnme
+	 * @param iv
+	 * @param blockcounter (in ChaCha small-endian layout)
+	 * @param key is 16b/128bits or 32b/256bits (recommended)
+	 * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+	 * @throws BufferOverflowException if returnme has too little room
+	 */
+	public static void crypto_stream_xor(ByteBuffer returnme, ByteBuffer xorme, byte[] iv, byte[] blockcounter, byte[] key, final int rounds){
+
+	    final int len = xorme.remaining();
+	    if (returnme.remaining() < len)
+	        throw new BufferOverflowException();
+
+	    int[] state = ChaChaCore.newState(key, iv, blockcounter);
+	    int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+
+	    final int inPos  = xorme.position();
+	    final int outPos = returnme.position();
+	    ChaChaCore.xor(state, x, xorme, inPos, returnme, outPos, len, rounds);
+
+	    xorme.position(inPos + len);
+	    if (returnme != xorme)
+	        returnme.position(outPos + len);
+
+	    ChaChaCore.destroy(state);
+	    ChaChaCore.destroy(x);
+	}
+
+	/**
+	 * Full call for a sequence of buffers taken as one stream, for regions
+	 * over 2GB, such as a large file or shared memory mapped as several
+	 * windows.  The remaining() bytes of the xorme buffers, in order, are
+	 * xor'd with the cipherstream into the returnme buffers, in order, and
+	 * every position is advanced by what was used of it.  The two
+	 * sequences may be split in different places, and may be the same
+	 * buffers to crypt in place.  Nothing is staged through the heap.
+	 *
+	 * @param returnme are the outputs, with room for all of xorme between them
+	 * @param xorme are the inputs
+	 * @param iv
+	 * @param blockcounter (in ChaCha small-endian layout)
+	 * @param key is 16b/128bits or 32b/256bits (recommended)
+	 * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+	 * @return the number of bytes crypted, which may be more than an int
+	 * @throws BufferOverflowException if returnme has too little room
+	 */
+	public static long crypto_stream_xor(ByteBuffer[] returnme, ByteBuffer[] xorme, byte[] iv, byte[] blockcounter, byte[] key, final int rounds){
+
+	    final int[] state = ChaChaCore.newState(key, iv, blockcounter);
+	    final int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+	    try {
+	        return BufferSequence.xor(returnme, xorme, new BufferSequence.Cipher() {
+	            void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len) {
+	                ChaChaCore.xor(state, x, in, inPos, out, outPos, len, rounds);
+	            }
+	            void keystream(byte[] block) {
+	                ChaChaCore.keystream(state, x, block, 0, rounds);
+	            }
+	        });
+	    } finally {
+	        ChaChaCore.destroy(state);
+	        ChaChaCore.destroy(x);
+	    }
+	}
+	
+	/**
+	 * WIP - a start at initialization context.
+	 * For a keyed object that carries the stream across calls,
+	 * see {@link ChaChaEngine}.
 	 * 
 	 * <p>Warning.  The blockcounter is treated as if it is in strict
 	 * ChaCha little-endian layout:  b0-b7 where b7 is the high byte,
@@ -311,45 +439,23 @@ public class ChaCha
 	 * @param blockcounter is BLOCKCOUNTER_LENGTH (8 bytes) in ChaCha little-endian order
 	 * @param key is KEY_LENGTH (32bytes/256bits recommended) or SMALL_KEY_LENGTH (16bytes/128bits)
 	 * @return the internal matrix (WIP)
+	 * @see ChaChaCore#newState(byte[], byte[], byte[]) for the flat form used internally
 	 */
     public static int[][] get_context(byte[] iv, byte[] blockcounter, byte[] key)
     {
-        if (key.length != SMALL_KEY_LENGTH && key.length != KEY_LENGTH)
-            throw new IllegalArgumentException("key length must be 16/128bits or 32/256bits");
-        if (iv.length != IV_LENGTH)
-            throw new IllegalArgumentException("iv/nonce length must be 16bytes");
-        if (blockcounter.length != BLOCKCOUNTER_LENGTH)
-            throw new IllegalArgumentException("iv/nonce length must be 16bytes");
-        
-        final int keyWordLen = key.length / 4;
+        int[] state = ChaChaCore.newState(key, iv, blockcounter);
         
-        int[] [] matrix = new int[4][4];
-        int[] keys      = new int[keyWordLen];
-        int[] bc        = new int[2];
-        int[] noncez    = new int[2];
-
         /*
          * Notes:
          * For all the silly people like me who get matrices confused,
          * the matrix is laid out this way:
          *         int [rows] [columns]
          */
-        for (int i = 0; i < 32; i += WORD) {         // 8 times, 8 key words
-            final int j = i % key.length;
-            final int kw = (i/WORD) % keys.length;
-            keys[kw] = bytes2littleendian(key[j], key[j+1], key[j+2], key[j+3]);    
-        }
-
-        for (int i = 0; i < 8; i += WORD) {          // twice, 2 nonce words
-            noncez[i/WORD] = bytes2littleendian(iv[i], iv[i+1], iv[i+2], iv[i+3]);
-        }
-
-        for (int i = 0; i < 8; i += WORD) {          // twice, 2 blockcounters words
-            bc[i/WORD] = bytes2littleendian(blockcounter[i], blockcounter[i+1], blockcounter[i+2], blockcounter[i+3]);
-        }
+        int[] [] matrix = new int[4][4];
+        for (int i = 0; i < ChaChaCore.STATE_LENGTH; i++)
+            matrix[i/4][i%4] = state[i];
 
-        initialize_matrix(matrix, keys, noncez, bc);
-        
+        ChaChaCore.destroy(state);
         return matrix;
     }
 
@@ -377,22 +483,35 @@ public class ChaCha
      * so the previous array is overwritten (hygiene!) after each use
      * (caller will have to destroy last array).
      *  
+     * This form allocates its scratch on every call;  a caller walking
+     * many blocks should keep scratch and use the form below.
+     *
      * @param matrix is the context of this encryption stream
      * @param b is the block that is set to the stream at blockcounter in matrix
      * @param rounds
-     * @return
+     * @see ChaChaCore#keystream which does the same over a flat state,
+     *      without flattening the matrix on every call
      */
     public static void block(int[][] matrix0, byte[] b, final int rounds)
     {
-        int[][]matrix = chachaRounds(matrix0, rounds);
-        int x = 0;
-        for (int i = 0; i < OUTPUT_BLOCK_SIZE/WORD; i++) {
-            byte[] temp = littleendian2bytes(matrix[(i/4)%4][i%4]);
-            b[x++] = temp[0];
-            b[x++] = temp[1];
-            b[x++] = temp[2];
-            b[x++] = temp[3];
-        }
+        block(matrix0, b, new int[ChaChaCore.STATE_LENGTH], new int[ChaChaCore.STATE_LENGTH], rounds);
+    }
+
+    /**
+     * As above, with caller-owned scratch as {@link ChaChaCore} takes it,
+     * so nothing is allocated.  Both are wiped before return.
+     *
+     * @param state is scratch of STATE_LENGTH ints, for the flattened matrix
+     * @param x is scratch of STATE_LENGTH ints, for the keystream words
+     */
+    public static void block(int[][] matrix0, byte[] b, int[] state, int[] x, final int rounds)
+    {
+        for (int i = 0; i < ChaChaCore.STATE_LENGTH; i++)
+            state[i] = matrix0[i/4][i%4];
+
+        ChaChaCore.keystream(state, x, b, 0, rounds);
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
 
         increment_bc(matrix0);
     }
@@ -403,43 +522,6 @@ public class ChaCha
 ////
 ////   Internals
 
-	/*
-	 * Crypts the ciphertext/message
-	 *   <li> 0 to xorlen in xorme, results in returnme again from 0 to xorme.
-	 *   <li> only starts at an exact blockcount boundary, every 64 bytes.
-	 * 
-	 * @param matrix0
-	 * @param returnme
-	 * @param xorme
-	 * @param xorlen
-	 */
-	private static void crypt(int[][] matrix0, byte[] returnme, byte[] xorme, final int xorlen, final int rounds)
-	{
-		int num = (xorlen+63)/OUTPUT_BLOCK_SIZE;
-		for (int j = 0; j < num; j++) {
-			//System.err.println("bc 12: "+ matrix0[3][0] + " 13: "+matrix0[3][1]);
-			int[][]matrix = chachaRounds(matrix0, rounds);
-			int start = j << 6;     // multiply by OUTPUT_BLOCK_SIZE
-			byte[] b = new byte[OUTPUT_BLOCK_SIZE];
-			int x = 0;
-			for (int i = start; i < (OUTPUT_BLOCK_SIZE/WORD) + start; i++) {
-				byte[] temp = littleendian2bytes(matrix[(i/4)%4][i%4]);
-				b[x++] = temp[0];
-				b[x++] = temp[1];
-				b[x++] = temp[2];
-				b[x++] = temp[3];
-			}
-
-			for (int i = start; (i < OUTPUT_BLOCK_SIZE + start) && (i < xorlen); i += 1){
-				returnme[i] =  (byte) (xorme[i] ^ b[i%OUTPUT_BLOCK_SIZE]);
-			}
-			
-			increment_bc(matrix0);
-			
-			/* stopping at 2^70 bytes per nonce is user's responsibility-- C code*/
-		}
-	}
-
 	public static String toString4x4(int[][] matrix)
 	{
 		String s = "";
@@ -463,43 +545,6 @@ public class ChaCha
         return s;
     }
     
-	/*
-	 * Does all rounds of ChaCha, returning the matrix to xor.
-	 * @param rounds is actually half, as each loop is a double
-	 */
-	private static int[][] chachaRounds(int[][] matrix, final int rounds){
-		int[][] matrix0 = copy(matrix);
-		for(int i = 0; i < rounds; i++){
-			onround(matrix0);
-			offround(matrix0);
-		}
-		matrix0 = add4x4(matrix0, matrix);
-		return matrix0;
-	}
-
-	private static void initialize_matrix(int[][] matrix, int keys[], int[] nonce, int[] block_counter)
-	{
-	    int[] greek = null;
-	    int key_doubler = -256;
-	    if (keys.length == 8) {          // 256 bits of key, full length
-	        greek = SIGMA_32;
-	        key_doubler = 4;             // so don't double
-	    } else {
-            greek = TAU_16;
-            key_doubler = 0;             // double the key, only 128 bits
-	    }
-		for(int i = 0; i < 4; i++){
-			matrix[0][i] = greek[i];     // TAU_16 or SIGMA_32
-			matrix[1][i] = keys[i];
-			matrix[2][i] = keys[i + key_doubler];
-		}
-		matrix[3] [0] = block_counter[0];
-		matrix[3] [1] = block_counter[1];
-		matrix[3] [2] = nonce[0];
-		matrix[3] [3] = nonce[1];
-	}
-	
-
     /*
      * Note in DJB's code at this point:
      *     stopping at 2^70 bytes per nonce is user's responsibility
@@ -525,38 +570,6 @@ public class ChaCha
 		return;
 	}
 
-	
-	/**
-	 * ChaCha has on (working on columns) and off 
-	 * (working on south east diagonals) rounds, on round
-	 * is performed first.  It has 1 uniform 
-	 * quarter round used by both on and off
-	 * rounds, this quarter round differs from
-	 * salsa20.  ChaCha does not transpose the
-	 * matrix.
-	 */
-
-	private static void onround(int[][] matrix){
-		quarterround(matrix, 0, 4,  8, 12);		//System.err.println(toString4x4(matrix));
-		quarterround(matrix, 1, 5,  9, 13);		//System.err.println(toString4x4(matrix));
-		quarterround(matrix, 2, 6, 10, 14);		//System.err.println(toString4x4(matrix));
-		quarterround(matrix, 3, 7, 11, 15);		//System.err.println(toString4x4(matrix));
-	}
-
-	private static void offround(int[][] matrix){
-		quarterround(matrix, 0, 5, 10, 15);		//System.err.println(toString4x4(matrix));
-		quarterround(matrix, 1, 6, 11, 12);		//System.err.println(toString4x4(matrix));
-		quarterround(matrix, 2, 7,  8, 13);		//System.err.println(toString4x4(matrix));
-		quarterround(matrix, 3, 4,  9, 14);		//System.err.println(toString4x4(matrix));
-	}
-
-	private static void quarterround(int[][]matrix, int a, int b, int c, int d){
-		matrix[a/4][a%4] += matrix[b/4][b%4]; matrix[d/4][d%4] ^= matrix[a/4][a%4]; matrix[d/4][d%4] = rotateleft(matrix[d/4][d%4], 16);
-		matrix[c/4][c%4] += matrix[d/4][d%4]; matrix[b/4][b%4] ^= matrix[c/4][c%4]; matrix[b/4][b%4] = rotateleft(matrix[b/4][b%4], 12);
-		matrix[a/4][a%4] += matrix[b/4][b%4]; matrix[d/4][d%4] ^= matrix[a/4][a%4]; matrix[d/4][d%4] = rotateleft(matrix[d/4][d%4],  8);
-		matrix[c/4][c%4] += matrix[d/4][d%4]; matrix[b/4][b%4] ^= matrix[c/4][c%4]; matrix[b/4][b%4] = rotateleft(matrix[b/4][b%4],  7);
-	}
-	
 
 	static int rotateleft(int rotate, int how_much){
 		how_much    = how_much % 32;
@@ -604,16 +617,6 @@ public class ChaCha
 		return b;
 	}
 
-	private static int[][] copy(int[][]matrix){
-		int[][] matrix0 = new int[4][4];
-		for(int i = 0; i < 16; i++){
-			matrix0[i/4][i%4] = matrix[i/4][i%4];
-		}
-		return matrix0;
-	}
-	
-	
-	
 ////////////////////////////////////////////////////////////////////
 ////
 ////    Test Code
@@ -810,6 +813,230 @@ public class ChaCha
         return "Greek";
     }
 
+    /**
+     * The matrix API of get_context() and block(), with and without
+     * caller scratch, must walk the same stream as crypto_stream_xor()
+     * over the flat state.
+     */
+    static String testContext()
+    {
+        for (int i = 0; i < 20; i++) {
+            byte[] key   = Support.exampleData((i % 2 == 0) ? KEY_LENGTH : SMALL_KEY_LENGTH);
+            byte[] nonce = Support.exampleData(IV_LENGTH);
+            byte[] bc    = Support.exampleData(BLOCKCOUNTER_LENGTH);
+            int    len   = Support.exampleInt(0, 1000);
+
+            byte[] stream = new byte[len];
+            crypto_stream_xor(stream, stream, len, nonce, bc, key, CHACHA12);
+
+            int[][] matrix = get_context(nonce, bc, key);
+            byte[] b = new byte[OUTPUT_BLOCK_SIZE];
+            int[] state = new int[ChaChaCore.STATE_LENGTH];
+            int[] x     = new int[ChaChaCore.STATE_LENGTH];
+            for (int j = 0; j < len; j += OUTPUT_BLOCK_SIZE) {
+                if (j % (2 * OUTPUT_BLOCK_SIZE) == 0)
+                    block(matrix, b, state, x, CHACHA12);
+                else
+                    block(matrix, b, CHACHA12);
+                int n = Math.min(OUTPUT_BLOCK_SIZE, len - j);
+                if (!X.ctEquals(stream, j, b, 0, n))
+                    throw new RuntimeException("block() differs from stream at " + j + " of " + len);
+            }
+            close_context(matrix);
+        }
+        return "Context";
+    }
+
+    /**
+     * The buffer calls must match the array calls, for heap and direct
+     * buffers of either byte order, in and out of place.
+     */
+    static String testByteBuffer()
+    {
+        for (int i = 0; i < 40; i++) {
+            byte[] key   = Support.exampleData(KEY_LENGTH);
+            byte[] nonce = Support.exampleData(IV_LENGTH);
+            byte[] bc    = Support.exampleData(BLOCKCOUNTER_LENGTH);
+            int    len   = Support.exampleInt(0, 1000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] expected = new byte[len];
+            crypto_stream_xor(expected, pt, len, nonce, bc, key, CHACHA20);
+
+            final int off = i % 5;
+            ByteBuffer in = ((i & 1) == 0) ? ByteBuffer.allocateDirect(len + 10) : ByteBuffer.allocate(len + 10);
+            if ((i & 2) == 0)
+                in.order(ByteOrder.LITTLE_ENDIAN);
+            in.position(off);
+            in.put(pt);
+            in.flip();
+            in.position(off);
+
+            ByteBuffer out;
+            if ((i & 4) == 0) {
+                out = in;                                   // in place
+            } else {
+                out = ((i & 8) == 0) ? ByteBuffer.allocateDirect(len + 3) : ByteBuffer.allocate(len + 3);
+                out.position(3);
+            }
+            int outStart = out.position();
+
+            crypto_stream_xor(out, in, nonce, bc, key, CHACHA20);
+
+            if (in.hasRemaining() || (out != in && out.position() != outStart + len))
+                throw new RuntimeException("buffer positions not advanced, len " + len);
+            byte[] got = new byte[len];
+            out.position(outStart);
+            out.get(got);
+            if (!X.ctEquals(expected, got))
+                throw new RuntimeException("buffer crypt differs at case " + i + " len " + len);
+        }
+        return "ByteBuffer";
+    }
+
+    /**
+     * Copy data into direct buffers of random sizes, some empty,
+     * each with a little slack at the front.
+     */
+    static ByteBuffer[] split(byte[] data)
+    {
+        java.util.List<ByteBuffer> list = new java.util.ArrayList<ByteBuffer>();
+        int off = 0;
+        do {
+            int n = Math.min(data.length - off, Support.exampleInt(0, 300));
+            ByteBuffer b = ByteBuffer.allocateDirect(n + 7);
+            if ((list.size() & 1) == 0)
+                b.order(ByteOrder.LITTLE_ENDIAN);
+            b.position(7);
+            b.put(data, off, n);
+            b.position(7);
+            list.add(b);
+            off += n;
+        } while (off < data.length);
+        return list.toArray(new ByteBuffer[list.size()]);
+    }
+
+    /** The remaining bytes of the buffers, end to end. */
+    static byte[] join(ByteBuffer[] buffers, int[] starts)
+    {
+        int len = 0;
+        for (int i = 0; i < buffers.length; i++)
+            len += buffers[i].position() - starts[i];
+        byte[] b = new byte[len];
+        int off = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            ByteBuffer d = buffers[i].duplicate();
+            int n = d.position() - starts[i];
+            d.position(starts[i]);
+            d.get(b, off, n);
+            off += n;
+        }
+        return b;
+    }
+
+    static int[] positions(ByteBuffer[] buffers)
+    {
+        int[] p = new int[buffers.length];
+        for (int i = 0; i < buffers.length; i++)
+            p[i] = buffers[i].position();
+        return p;
+    }
+
+    /**
+     * A stream over a sequence of buffers, split differently in and
+     * out, must be the stream over the one array, in and out of place.
+     */
+    static String testByteBuffers()
+    {
+        for (int i = 0; i < 30; i++) {
+            byte[] key   = Support.exampleData(KEY_LENGTH);
+            byte[] nonce = Support.exampleData(IV_LENGTH);
+            byte[] bc    = Support.exampleData(BLOCKCOUNTER_LENGTH);
+            int    len   = Support.exampleInt(0, 2000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] expected = new byte[len];
+            crypto_stream_xor(expected, pt, len, nonce, bc, key, CHACHA12);
+
+            ByteBuffer[] in  = split(pt);
+            ByteBuffer[] out = ((i & 1) == 0) ? in : split(new byte[len]);
+            int[] starts = positions(out);
+            long n = crypto_stream_xor(out, in, nonce, bc, key, CHACHA12);
+
+            if (n != len || BufferSequence.remaining(in) != 0)
+                throw new RuntimeException("buffer sequence not used up, len " + len);
+            if (!X.ctEquals(expected, join(out, starts)))
+                throw new RuntimeException("buffer sequence differs at case " + i + " len " + len);
+        }
+        return "ByteBuffers";
+    }
+
+    /**
+     * Four blocks at a time must give the same stream as one at a time,
+     * including where the blockcounter carries into its high word.
+     */
+    static String testMultiBlock()
+    {
+        final long[] counters = { 0, 0xFFFFFFFDL, 0xFFFFFFFEL, 0xFFFFFFFFL, -3, -1 };
+        for (int i = 0; i < counters.length * 4; i++) {
+            byte[] key   = Support.exampleData(KEY_LENGTH);
+            byte[] nonce = Support.exampleData(IV_LENGTH);
+            int    len   = Support.exampleInt(256, 2000);
+            byte[] pt    = Support.exampleData(len);
+            final int rounds = (i % 2 == 0) ? CHACHA8 : CHACHA20;
+
+            int[] state1 = ChaChaCore.newState(key, nonce, long2bc(counters[i % counters.length]));
+            int[] state4 = state1.clone();
+            byte[] single = new byte[len];
+            byte[] multi  = new byte[len];
+            ChaChaCore.xor(state1, new int[ChaChaCore.STATE_LENGTH], pt, 0, single, 0, len, rounds);
+            ChaChaCore.xor(state4, new int[ChaChaCore.SCRATCH_LENGTH], pt, 0, multi, 0, len, rounds);
+
+            if (!X.ctEquals(single, multi) || ChaChaCore.getCounter(state1) != ChaChaCore.getCounter(state4))
+                throw new RuntimeException("multi-block differs from single at counter "
+                        + Long.toHexString(counters[i % counters.length]) + " len " + len);
+        }
+        return "MultiBlock";
+    }
+
+    static String testBlockcounter()
+    {
+        final long[] bcs = { 0, 1, 0x80, 0xFF, 0x1234567890abcdefL, 0xFFFFFFFFL, -1, Long.MIN_VALUE };
+        for (int i = 0; i < bcs.length; i++) {
+            if (bc2long(long2bc(bcs[i])) != bcs[i])
+                throw new RuntimeException("bc2long(long2bc(" + Long.toHexString(bcs[i]) + ")) == "
+                        + Long.toHexString(bc2long(long2bc(bcs[i]))));
+        }
+        if (!X.ctEquals(long2bc(1), X.hex2data("0100000000000000")))
+            throw new RuntimeException("long2bc(1) not little-endian");
+        return "Blockcounter";
+    }
+
+    /**
+     * Crypting a range at a byte offset must match the same range of
+     * the whole stream.
+     */
+    static String testOffset()
+    {
+        for (int i = 0; i < 50; i++) {
+            byte[] key   = Support.exampleData(KEY_LENGTH);
+            byte[] nonce = Support.exampleData(IV_LENGTH);
+            int    len   = Support.exampleInt(1, 2000);
+
+            byte[] whole = new byte[len];
+            crypto_stream_xor(whole, whole, len, nonce, key);
+
+            int from = Support.exampleInt(0, len - 1);
+            int n    = Support.exampleInt(0, len - from);
+            byte[] zeros = new byte[n + 5];
+            byte[] range = new byte[n + 3];
+            crypto_stream_xor_at(range, 3, zeros, 5, n, nonce, from, key, CHACHA20);
+            if (!X.ctEquals(whole, from, range, 3, n))
+                throw new RuntimeException("range " + from + "+" + n + " differs");
+        }
+        return "Offset";
+    }
+
     public static String baseTest(){
         String s = "";
         
@@ -825,6 +1052,12 @@ public class ChaCha
 		String s = "ChaCha: ";
 		
 		s += baseTest();
+        s += testContext() + ". ";
+        s += testByteBuffer() + ". ";
+        s += testByteBuffers() + ". ";
+        s += testMultiBlock() + ". ";
+        s += testBlockcounter() + ". ";
+        s += testOffset() + ". ";
         s += "   Test vectors:\n";
 		
         s += testVector(ChaChaVectors.CReferenceVector8round);
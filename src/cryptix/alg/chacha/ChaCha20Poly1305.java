@@ -0,0 +1,282 @@
+package cryptix.alg.chacha;
+
+import cryptix.Support;
+import cryptix.X;
+import cryptix.alg.poly1305.Poly1305;
+
+/**
+ * <p>
+ * The ChaCha20-Poly1305 AEAD of RFC 8439:  IETF ChaCha20 (see
+ * {@link ChaChaIETF}) for secrecy, and Poly1305 over the additional
+ * data and the ciphertext for integrity.  Block 0 of the keystream is
+ * the one-time Poly1305 key, and the message is crypted from block 1.
+ * </p><p>
+ * seal() runs in a single pass:  the message is crypted a CHUNK at a
+ * time, and each chunk of ciphertext is MAC'd while it is still in cache,
+ * rather than crypting it all and then reading it all back from memory
+ * for the MAC.
+ * </p><p>
+ * open() checks the tag over the ciphertext before it decrypts a byte,
+ * so a forged message never has its plaintext written anywhere.
+ * A failed open() leaves the output untouched and returns false.
+ * </p>
+ *
+ * @see ChaChaIETF
+ * @see Poly1305
+ */
+public class ChaCha20Poly1305
+{
+    private ChaCha20Poly1305() { }
+
+    public static final int
+        KEY_LENGTH          = ChaCha.KEY_LENGTH,
+        NONCE_LENGTH        = ChaChaIETF.NONCE_LENGTH,
+        TAG_LENGTH          = Poly1305.MAC_LENGTH;
+
+    /**
+     * Bytes crypted and then MAC'd at a time, a multiple of the ChaCha
+     * and Poly1305 block sizes.  Input and output chunks sit well inside
+     * a level 1 cache.
+     */
+    static final int CHUNK  = 4096;
+
+    private static final int POLY_BLOCK = 16;
+
+    /**
+     * Easy call.
+     * @return the ciphertext with the tag appended, m.length + TAG_LENGTH bytes
+     */
+    public static byte[] seal(byte[] m, byte[] ad, byte[] nonce, byte[] key)
+    {
+        byte[] c = new byte[m.length + TAG_LENGTH];
+        seal(c, 0, m, 0, m.length, ad, nonce, key);
+        return c;
+    }
+
+    /**
+     * Easy call.
+     * @param c is the ciphertext with the tag appended
+     * @return the plaintext, or null if the tag does not verify
+     */
+    public static byte[] open(byte[] c, byte[] ad, byte[] nonce, byte[] key)
+    {
+        if (c.length < TAG_LENGTH)
+            return null;
+        byte[] m = new byte[c.length - TAG_LENGTH];
+        return open(m, 0, c, 0, c.length, ad, nonce, key) ? m : null;
+    }
+
+    /**
+     * Encrypt and authenticate.
+     * In and out may be the same array at the same offset.
+     *
+     * @param c receives mlen bytes of ciphertext then the TAG_LENGTH tag, from cOff
+     * @param cOff
+     * @param m is the plaintext, read from mOff
+     * @param mOff
+     * @param mlen
+     * @param ad is the additional data, authenticated but not crypted, may be null
+     * @param nonce is NONCE_LENGTH (12 bytes), never to be reused with the key
+     * @param key is KEY_LENGTH (32 bytes)
+     */
+    public static void seal(byte[] c, int cOff, byte[] m, int mOff, int mlen, byte[] ad, byte[] nonce, byte[] key)
+    {
+        if (mlen < 0 || m.length - mOff < mlen || c.length - cOff < mlen + TAG_LENGTH)
+            throw new IllegalArgumentException("ChaCha20Poly1305 buffer params oflow");
+        ChaChaIETF.checkCounter(1, mlen);
+
+        int[] state = new int[ChaChaCore.STATE_LENGTH];
+        int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+        int[][] mac = start(state, x, ad, nonce, key);
+
+        for (int done = 0; done < mlen; done += CHUNK) {
+            int len = Math.min(CHUNK, mlen - done);
+            ChaChaCore.xor(state, x, m, mOff + done, c, cOff + done, len, ChaCha.CHACHA20);
+            Poly1305.blocks(mac, c, cOff + done, len - len % POLY_BLOCK);
+        }
+
+        finish(mac, state, x, ad, c, cOff, mlen, c, cOff + mlen);
+    }
+
+    /**
+     * Verify and decrypt.
+     * In and out may be the same array at the same offset.
+     *
+     * @param m receives clen - TAG_LENGTH bytes of plaintext from mOff, only if the tag verifies
+     * @param mOff
+     * @param c is the ciphertext with the tag appended, read from cOff
+     * @param cOff
+     * @param clen includes the tag
+     * @param ad is the additional data, as given to seal(), may be null
+     * @param nonce is NONCE_LENGTH (12 bytes)
+     * @param key is KEY_LENGTH (32 bytes)
+     * @return true if the tag verified and m holds the plaintext, else false and m is untouched
+     */
+    public static boolean open(byte[] m, int mOff, byte[] c, int cOff, int clen, byte[] ad, byte[] nonce, byte[] key)
+    {
+        if (clen < TAG_LENGTH || c.length - cOff < clen)
+            throw new IllegalArgumentException("ChaCha20Poly1305 buffer params oflow");
+        final int mlen = clen - TAG_LENGTH;
+        if (m.length - mOff < mlen)
+            throw new IllegalArgumentException("ChaCha20Poly1305 buffer params oflow");
+        ChaChaIETF.checkCounter(1, mlen);
+
+        int[] state = new int[ChaChaCore.STATE_LENGTH];
+        int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+        int[][] mac = start(state, x, ad, nonce, key);
+
+        Poly1305.blocks(mac, c, cOff, mlen - mlen % POLY_BLOCK);
+        byte[] tag = new byte[TAG_LENGTH];
+        finish(mac, state, x, ad, c, cOff, mlen, tag, 0);
+
+        if (!X.ctEquals(tag, 0, c, cOff + mlen, TAG_LENGTH)) {
+            ChaChaCore.destroy(state);
+            ChaChaCore.destroy(x);
+            return false;
+        }
+
+        ChaChaCore.xor(state, x, c, cOff, m, mOff, mlen, ChaCha.CHACHA20);
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
+        return true;
+    }
+
+    /**
+     * Set up the cipher, take the Poly1305 key from block 0 (leaving the
+     * state at block 1), and MAC the additional data with its padding.
+     */
+    private static int[][] start(int[] state, int[] x, byte[] ad, byte[] nonce, byte[] key)
+    {
+        ChaChaCore.initStateIETF(state, key, nonce, 0);
+
+        byte[] block0 = new byte[ChaCha.OUTPUT_BLOCK_SIZE];
+        ChaChaCore.keystream(state, x, block0, 0, ChaCha.CHACHA20);
+        byte[] r = X.copy(block0, 0, Poly1305.MAC_SECRET_LEN);
+        int[][] mac = Poly1305.init_context(r);
+        X.destroy(r);
+        X.destroy(block0);          // s is recomputed in finish()
+
+        if (ad != null)
+            pad(mac, ad, 0, ad.length);
+        return mac;
+    }
+
+    /**
+     * MAC the padded tail of the ciphertext and the two lengths, and
+     * write the tag.  The whole blocks of the ciphertext are already done.
+     * The state is left at the first block of the message, for open().
+     */
+    private static void finish(int[][] mac, int[] state, int[] x, byte[] ad,
+                               byte[] c, int cOff, int mlen, byte[] tag, int tagOff)
+    {
+        int tail = mlen % POLY_BLOCK;
+        if (tail > 0)
+            pad(mac, c, cOff + mlen - tail, tail);
+
+        byte[] lengths = new byte[POLY_BLOCK];
+        storeLong(lengths, 0, (ad == null) ? 0 : ad.length);
+        storeLong(lengths, 8, mlen);
+        Poly1305.blocks(mac, lengths, 0, POLY_BLOCK);
+
+        // recompute block 0 for s, rather than hold it across the message
+        ChaChaCore.setCounter(state, ChaChaCore.getCounter(state) & 0xFFFFFFFF00000000L);
+        byte[] block0 = new byte[ChaCha.OUTPUT_BLOCK_SIZE];
+        ChaChaCore.keystream(state, x, block0, 0, ChaCha.CHACHA20);
+        byte[] s = X.copy(block0, Poly1305.MAC_SECRET_LEN, Poly1305.ENC_NONCE_LEN);
+        Poly1305.finish(mac, tag, tagOff, s);
+        X.destroy(s);
+        X.destroy(block0);
+    }
+
+    /** MAC len bytes, then zeros up to the next 16 byte boundary. */
+    private static void pad(int[][] mac, byte[] b, int off, int len)
+    {
+        int whole = len - len % POLY_BLOCK;
+        Poly1305.blocks(mac, b, off, whole);
+        if (whole < len) {
+            byte[] last = new byte[POLY_BLOCK];
+            System.arraycopy(b, off + whole, last, 0, len - whole);
+            Poly1305.blocks(mac, last, 0, POLY_BLOCK);
+        }
+    }
+
+    private static void storeLong(byte[] b, int off, long v)
+    {
+        ChaChaCore.store(b, off,     (int) v);
+        ChaChaCore.store(b, off + 4, (int) (v >>> 32));
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /** RFC 8439 2.8.2. */
+    static String testRFC()
+    {
+        byte[] key   = X.hex2data("808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f");
+        byte[] nonce = X.hex2data("070000004041424344454647");
+        byte[] ad    = X.hex2data("50515253c0c1c2c3c4c5c6c7");
+        byte[] m     = X.hex2data("4c616469657320616e642047656e746c656d656e206f662074686520636c617373206f66202739393a204966204920636f756c64206f6666657220796f75206f6e6c79206f6e652074697020666f7220746865206675747572652c2073756e73637265656e20776f756c642062652069742e");
+        byte[] want  = X.hex2data("d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d63dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b3692ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc3ff4def08e4b7a9de576d26586cec64b6116"
+                                 + "1ae10b594f09e26a7e902ecbd0600691");
+
+        byte[] c = seal(m, ad, nonce, key);
+        if (!X.ctEquals(want, c))
+            throw new RuntimeException("RFC 8439 2.8.2 sealed: " + X.data2hex(c));
+        if (!X.ctEquals(m, open(c, ad, nonce, key)))
+            throw new RuntimeException("RFC 8439 2.8.2 did not open");
+        return "RFC 8439";
+    }
+
+    /** Round trips across the chunk size, and every kind of tamper is refused. */
+    static String testRoundTrip()
+    {
+        for (int i = 0; i < 30; i++) {
+            byte[] key   = Support.exampleData(KEY_LENGTH);
+            byte[] nonce = Support.exampleData(NONCE_LENGTH);
+            byte[] ad    = (i % 3 == 0) ? null : Support.exampleData(Support.exampleInt(0, 40));
+            byte[] m     = Support.exampleData(Support.exampleInt(0, 3 * CHUNK));
+
+            byte[] c = seal(m, ad, nonce, key);
+            if (!X.ctEquals(m, open(c, ad, nonce, key)))
+                throw new RuntimeException("round trip failed, len " + m.length);
+
+            // in place
+            byte[] buf = new byte[m.length + TAG_LENGTH];
+            System.arraycopy(m, 0, buf, 0, m.length);
+            seal(buf, 0, buf, 0, m.length, ad, nonce, key);
+            if (!X.ctEquals(c, buf))
+                throw new RuntimeException("in place seal differs, len " + m.length);
+            if (!open(buf, 0, buf, 0, buf.length, ad, nonce, key) || !X.ctEquals(m, 0, buf, 0, m.length))
+                throw new RuntimeException("in place open failed, len " + m.length);
+
+            int flip = Support.exampleInt(0, c.length - 1);
+            c[flip] ^= 1;
+            byte[] out = new byte[m.length];
+            if (open(out, 0, c, 0, c.length, ad, nonce, key))
+                throw new RuntimeException("tampered byte " + flip + " accepted");
+            c[flip] ^= 1;
+
+            byte[] otherAd = (ad == null || ad.length == 0) ? new byte[1] : null;
+            if (open(c, otherAd, nonce, key) != null)
+                throw new RuntimeException("wrong ad accepted");
+        }
+        return "Round trip";
+    }
+
+    public static String selfTest()
+    {
+        String s = "ChaCha20Poly1305: ";
+        s += testRFC() + ". ";
+        s += testRoundTrip() + ". ";
+        s += "ChaCha20Poly1305 good.";
+        return s;
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,225 @@
+package cryptix.alg.chacha;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * ChaCha over a batch of records under one key, each record with its own
+ * nonce and each starting at blockcounter 0.  The result for each record
+ * is that of {@link ChaCha#crypto_stream_xor(byte[], byte[], int, byte[], byte[])}
+ * on the record alone, but the key is laid into a state once for the
+ * whole batch, and the state and scratch are reused from record to
+ * record, so a record costs only its blocks.
+ * </p><p>
+ * The records sit in one input and one output array:  record i is
+ * lengths[i] bytes at offsets[i], in both.  The batch can be spread over
+ * a ForkJoinPool, split between records, never inside one.
+ * </p>
+ *
+ * @see ChaChaParallel for one large message over several cores
+ */
+public class ChaChaBatch
+{
+    private ChaChaBatch() { }
+
+    /**
+     * Crypt the batch on this thread.
+     *
+     * @param returnme is the output, record i written at offsets[i]
+     * @param xorme is the input, record i read from offsets[i] (may be returnme)
+     * @param offsets of the records
+     * @param lengths of the records
+     * @param ivs is one IV_LENGTH (8 byte) nonce for each record
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int[] offsets, int[] lengths, byte[][] ivs,
+                                         byte[] key, final int rounds)
+    {
+        long[] ends = check(returnme, xorme, offsets, lengths, ivs);
+        int[] keyed = keyed(key);
+        new Records(keyed, returnme, xorme, offsets, lengths, ivs, ends, 0, offsets.length, rounds, Long.MAX_VALUE).compute();
+        ChaChaCore.destroy(keyed);
+    }
+
+    /**
+     * Crypt the batch on the pool.  Runs of records are handed out as
+     * tasks of about threshold bytes.
+     *
+     * @param pool runs the tasks
+     * @param threshold is the bytes of records below which a run is not split
+     * @see #crypto_stream_xor(byte[], byte[], int[], int[], byte[][], byte[], int)
+     */
+    public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int[] offsets, int[] lengths, byte[][] ivs,
+                                         byte[] key, final int rounds, ForkJoinPool pool, int threshold)
+    {
+        if (threshold < ChaCha.OUTPUT_BLOCK_SIZE)
+            throw new IllegalArgumentException("threshold must be at least one block");
+
+        long[] ends = check(returnme, xorme, offsets, lengths, ivs);
+        int[] keyed = keyed(key);
+        try {
+            Records all = new Records(keyed, returnme, xorme, offsets, lengths, ivs, ends, 0, offsets.length, rounds, threshold);
+            if (offsets.length == 0 || ends[offsets.length - 1] <= threshold)
+                all.compute();
+            else
+                pool.invoke(all);
+        } finally {
+            ChaChaCore.destroy(keyed);
+        }
+    }
+
+    /**
+     * Check every record is inside both arrays and has a nonce.
+     * @return the running total of the lengths, ends[i] is the bytes of records 0 to i
+     */
+    private static long[] check(byte[] returnme, byte[] xorme, int[] offsets, int[] lengths, byte[][] ivs)
+    {
+        final int n = offsets.length;
+        if (lengths.length != n || ivs.length != n)
+            throw new IllegalArgumentException("offsets, lengths and ivs must be the same count");
+
+        long[] ends = new long[n];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            int off = offsets[i], len = lengths[i];
+            if (off < 0 || len < 0 || xorme.length - off < len || returnme.length - off < len)
+                throw new IllegalArgumentException("record " + i + " outside the arrays");
+            if (ivs[i].length != ChaCha.IV_LENGTH)
+                throw new IllegalArgumentException("record " + i + " iv/nonce length must be 8 bytes");
+            total += len;
+            ends[i] = total;
+        }
+        return ends;
+    }
+
+    /** The constants and key words, set once for the batch. */
+    private static int[] keyed(byte[] key)
+    {
+        int[] keyed = new int[ChaChaCore.STATE_LENGTH];
+        ChaChaCore.setKey(keyed, key);
+        return keyed;
+    }
+
+    /**
+     * Records from..to of the batch.  Splits in two by bytes until a run
+     * is no more than threshold bytes or a single record.
+     */
+    private static final class Records
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[]    keyed;
+        private final byte[]   returnme, xorme;
+        private final int[]    offsets, lengths;
+        private final byte[][] ivs;
+        private final long[]   ends;
+        private final int      from, to, rounds;
+        private final long     threshold;
+
+        Records(int[] keyed, byte[] returnme, byte[] xorme, int[] offsets, int[] lengths, byte[][] ivs, long[] ends,
+                int from, int to, int rounds, long threshold)
+        {
+            this.keyed     = keyed;
+            this.returnme  = returnme;
+            this.xorme     = xorme;
+            this.offsets   = offsets;
+            this.lengths   = lengths;
+            this.ivs       = ivs;
+            this.ends      = ends;
+            this.from      = from;
+            this.to        = to;
+            this.rounds    = rounds;
+            this.threshold = threshold;
+        }
+
+        private long bytes(int a, int b)     // bytes in records a..b-1
+        {
+            return ends[b - 1] - ((a == 0) ? 0 : ends[a - 1]);
+        }
+
+        protected void compute()
+        {
+            if (to - from > 1 && bytes(from, to) > threshold) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Records(keyed, returnme, xorme, offsets, lengths, ivs, ends, from, mid, rounds, threshold),
+                          new Records(keyed, returnme, xorme, offsets, lengths, ivs, ends, mid, to, rounds, threshold));
+                return;
+            }
+
+            int[] state = new int[ChaChaCore.STATE_LENGTH];
+            int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+            for (int i = from; i < to; i++) {
+                System.arraycopy(keyed, 0, state, 0, ChaChaCore.NONCE_0);    // constants, key, and...
+                state[ChaChaCore.COUNTER_LO] = 0;                             // ...blockcounter 0
+                state[ChaChaCore.COUNTER_HI] = 0;
+                state[ChaChaCore.NONCE_0]    = ChaChaCore.load(ivs[i], 0);
+                state[ChaChaCore.NONCE_1]    = ChaChaCore.load(ivs[i], 4);
+                ChaChaCore.xor(state, x, xorme, offsets[i], returnme, offsets[i], lengths[i], rounds);
+            }
+            ChaChaCore.destroy(state);
+            ChaChaCore.destroy(x);
+        }
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * Each record of a batch, serial or on the pool, must be what ChaCha
+     * gives for the record on its own.
+     */
+    public static String selfTest()
+    {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (int round = 0; round < 10; round++) {
+                int      n       = Support.exampleInt(0, 300);
+                int[]    offsets = new int[n];
+                int[]    lengths = new int[n];
+                byte[][] ivs     = new byte[n][];
+                int total = 0;
+                for (int i = 0; i < n; i++) {
+                    total     += Support.exampleInt(0, 5);     // gaps between records are left alone
+                    offsets[i] = total;
+                    lengths[i] = Support.exampleInt(0, (i % 7 == 0) ? 1000 : 200);
+                    ivs[i]     = Support.exampleData(ChaCha.IV_LENGTH);
+                    total     += lengths[i];
+                }
+                byte[] key = Support.exampleData(ChaCha.KEY_LENGTH);
+                byte[] in  = Support.exampleData(total);
+
+                byte[] want = X.copy(in);
+                for (int i = 0; i < n; i++) {
+                    byte[] one = new byte[lengths[i]];
+                    ChaCha.crypto_stream_xor(one, X.copy(in, offsets[i], lengths[i]), lengths[i], ivs[i], key);
+                    System.arraycopy(one, 0, want, offsets[i], lengths[i]);
+                }
+
+                byte[] serial = X.copy(in);
+                crypto_stream_xor(serial, in, offsets, lengths, ivs, key, ChaCha.CHACHA20);
+                byte[] parallel = X.copy(in);
+                crypto_stream_xor(parallel, parallel, offsets, lengths, ivs, key, ChaCha.CHACHA20, pool, Support.exampleInt(64, 5000));
+
+                if (!X.ctEquals(want, serial) || !X.ctEquals(want, parallel))
+                    throw new RuntimeException("batch differs from one by one, " + n + " records");
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return "ChaChaBatch good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
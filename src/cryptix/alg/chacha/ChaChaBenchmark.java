@@ -0,0 +1,188 @@
+package cryptix.alg.chacha;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import cryptix.AdazPRNG.StatefulChacha;
+import cryptix.Support;
+import cryptix.util.Statistics;
+
+/**
+ * <p>
+ * Throughput and allocation of the ChaCha family, for catching
+ * regressions and for putting a new engine next to the reference code.
+ * Every subject is run over every message size, from 16 bytes to 16MB,
+ * and one line is printed for each:
+ * </p>
+ * <pre>
+ *    subject          size       MB/s   +/-%     alloc B/op
+ * </pre>
+ * <p>
+ * Each pair is warmed up, then timed over several iterations of at
+ * least the measure time;  MB/s is the mean over the iterations and +/-
+ * their standard deviation.  Allocation is the bytes allocated by the
+ * benchmark thread per operation, which is what JMH's -prof gc reports
+ * as gc.alloc.rate.norm, read from the JVM's thread allocation counter
+ * (HotSpot only, else shown as -).
+ * </p><p>
+ * There are no dependencies and nothing to download, so it runs
+ * anywhere the classes are:
+ * </p>
+ * <pre>
+ *    java -cp classes cryptix.alg.chacha.ChaChaBenchmark [-quick] [-sizes 64,1024] [name...]
+ * </pre>
+ * <p>
+ * The names select subjects by substring, all if none.  -quick cuts the
+ * warm up and measure times to a smoke test, not to be believed.
+ * For numbers worth comparing, use a quiet machine, and the same JVM
+ * and flags for both sides.
+ * </p>
+ */
+public class ChaChaBenchmark
+{
+    static final int[] SIZES = {
+        16, 64, 256, 1024, 4 * 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024
+    };
+
+    /** One thing to measure:  crypt len bytes of in into out. */
+    static abstract class Subject
+    {
+        final String name;
+        Subject(String name)       { this.name = name; }
+        abstract void run(byte[] in, byte[] out, int len);
+    }
+
+    static final byte[] KEY   = Support.exampleData(ChaCha.KEY_LENGTH);
+    static final byte[] IV    = Support.exampleData(ChaCha.IV_LENGTH);
+    static final byte[] BC    = new byte[ChaCha.BLOCKCOUNTER_LENGTH];
+    static final byte[] XIV   = Support.exampleData(24);
+
+    static List<Subject> subjects()
+    {
+        List<Subject> list = new ArrayList<Subject>();
+        list.add(new Subject("ChaCha8") {
+            void run(byte[] in, byte[] out, int len) { ChaCha.crypto_stream_xor(out, in, len, IV, BC, KEY, ChaCha.CHACHA8); }
+        });
+        list.add(new Subject("ChaCha12") {
+            void run(byte[] in, byte[] out, int len) { ChaCha.crypto_stream_xor(out, in, len, IV, BC, KEY, ChaCha.CHACHA12); }
+        });
+        list.add(new Subject("ChaCha20") {
+            void run(byte[] in, byte[] out, int len) { ChaCha.crypto_stream_xor(out, in, len, IV, BC, KEY, ChaCha.CHACHA20); }
+        });
+        list.add(new Subject("ChaChaEngine20") {
+            final ChaChaEngine engine = new ChaChaEngine(ChaCha.CHACHA20);
+            void run(byte[] in, byte[] out, int len) {
+                engine.init(KEY, IV, 0);
+                engine.processBytes(in, 0, len, out, 0);
+            }
+        });
+        list.add(new Subject("Salsa20") {
+            void run(byte[] in, byte[] out, int len) { Salsa20.crypto_stream_xor(out, in, len, IV, 0, KEY); }
+        });
+        list.add(new Subject("Salsa20Engine") {
+            final Salsa20Engine engine = new Salsa20Engine();
+            void run(byte[] in, byte[] out, int len) {
+                engine.init(KEY, IV, 0);
+                engine.processBytes(in, 0, len, out, 0);
+            }
+        });
+        list.add(new Subject("MySalsa20") {
+            void run(byte[] in, byte[] out, int len) { MySalsa20.crypto_stream_xor(out, in, len, IV, 0, KEY); }
+        });
+        list.add(new Subject("Xsalsa20") {
+            void run(byte[] in, byte[] out, int len) { Xsalsa20.crypto_stream_xor(out, in, len, XIV, KEY); }
+        });
+        list.add(new Subject("StatefulChacha8") {
+            final StatefulChacha prng = new StatefulChacha(false);
+            { prng.init(Support.exampleData(StatefulChacha.SEEDLEN)); }
+            void run(byte[] in, byte[] out, int len) { prng.nextBytes(out); }     // out is len long
+        });
+        return list;
+    }
+
+    static volatile int sink;          // keeps the JIT from dropping the work
+
+    static long warmupMs  = 500,
+                measureMs = 200;
+    static int  iterations = 5;
+
+    /** The benchmark thread's allocated bytes, or -1 if the JVM can't say. */
+    static long allocated()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        return -1;
+    }
+
+    /** @return ops done in at least ms milliseconds, at least one */
+    static long runFor(Subject s, byte[] in, byte[] out, int len, long ms)
+    {
+        long end = System.nanoTime() + ms * 1000000L;
+        long ops = 0;
+        do {
+            s.run(in, out, len);
+            sink += out[0];
+            ops++;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    static String measure(Subject s, int len)
+    {
+        byte[] in  = Support.exampleData(len);
+        byte[] out = new byte[len];
+
+        runFor(s, in, out, len, warmupMs);
+
+        Statistics perByte = new Statistics(iterations + 1);   // ps per byte
+        perByte.setIgnoreFirstMeasureand(false);
+        long ops = 0;
+        long alloc = allocated();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long n = runFor(s, in, out, len, measureMs);
+            long ns = System.nanoTime() - start;
+            perByte.push(ns * 1000 / (n * len));
+            ops += n;
+        }
+        long allocPerOp = (alloc < 0) ? -1 : (allocated() - alloc) / ops;
+
+        double mbs = 1e6 / Math.max(1, perByte.average());         // 1e12 ps/s / 1e6 B/MB
+        double err = 100.0 * perByte.deviation() / Math.max(1, perByte.average());
+        return String.format("%-16s %9d %10.1f %6.1f %14s", s.name, len, mbs, err,
+                             (allocPerOp < 0) ? "-" : Long.toString(allocPerOp));
+    }
+
+    public static void main(String[] args)
+    {
+        int[] sizes = SIZES;
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-quick")) {
+                warmupMs = 20;
+                measureMs = 10;
+                iterations = 2;
+            } else if (args[i].equals("-sizes") && i + 1 < args.length) {
+                String[] ss = args[++i].split(",");
+                sizes = new int[ss.length];
+                for (int j = 0; j < ss.length; j++)
+                    sizes[j] = Integer.parseInt(ss[j].trim());
+            } else {
+                names.add(args[i]);
+            }
+        }
+
+        System.out.println(String.format("%-16s %9s %10s %6s %14s", "subject", "size", "MB/s", "+/-%", "alloc B/op"));
+        for (Subject s : subjects()) {
+            boolean wanted = names.isEmpty();
+            for (String n : names)
+                wanted |= s.name.indexOf(n) >= 0;
+            if (!wanted)
+                continue;
+            for (int len : sizes)
+                System.out.println(measure(s, len));
+        }
+    }
+}
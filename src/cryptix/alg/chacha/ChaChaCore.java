@@ -0,0 +1,1137 @@
+package cryptix.alg.chacha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * The ChaCha block function over a flat <code>int[16]</code> state.
+ * This is the engine underneath {@link ChaCha}, and it replaces the
+ * <code>int[4][4]</code> matrix code:  the rounds run over sixteen
+ * local ints, and nothing is allocated per block.
+ * </p><p>
+ * The state is laid out as the rows of the ChaCha matrix, one after the
+ * other, so word <i>i</i> is <code>matrix[i/4][i%4]</code>:
+ * </p>
+ * <pre>
+ *     0  constant    1  constant    2  constant    3  constant
+ *     4  key0        5  key1        6  key2        7  key3
+ *     8  key4        9  key5       10  key6       11  key7
+ *    12  bc0        13  bc1        14  nonce0     15  nonce1
+ * </pre>
+ * <p>
+ * Words 12 and 13 hold the blockcounter as a 64 bit little-endian
+ * number, and every block produced advances it by one.
+ * Callers need a second int array as scratch for the keystream words,
+ * which they are expected to keep and reuse:  <code>int[16]</code>
+ * does one block at a time, <code>int[SCRATCH_LENGTH]</code> lets
+ * xor() run four blocks at a time on longer inputs.
+ * </p>
+ *
+ * @see ChaCha for the API and the layout discussion
+ */
+public final class ChaChaCore
+{
+    private ChaChaCore() { }
+
+    /** Number of int words in a state (and in a keystream block). */
+    public static final int STATE_LENGTH = 16;
+
+    /**
+     * Number of blocks computed together by block4(), and the ints of
+     * scratch it needs.  xor() uses block4() for runs of at least
+     * MULTI_BLOCKS blocks when it is given SCRATCH_LENGTH of scratch.
+     */
+    public static final int
+        MULTI_BLOCKS        = 4,
+        SCRATCH_LENGTH      = MULTI_BLOCKS * STATE_LENGTH;
+
+    static final int
+        MULTI_BLOCK_SIZE    = MULTI_BLOCKS * 64;     // 256 bytes
+
+    static final int
+        COUNTER_LO          = 12,
+        COUNTER_HI          = 13,
+        NONCE_0             = 14,
+        NONCE_1             = 15;
+
+    /**
+     * Allocate and fill a new state.
+     * @see #initState(int[], byte[], byte[], byte[])
+     * @return a fresh int[16] state
+     */
+    public static int[] newState(byte[] key, byte[] iv, byte[] blockcounter)
+    {
+        int[] state = new int[STATE_LENGTH];
+        initState(state, key, iv, blockcounter);
+        return state;
+    }
+
+    /**
+     * Set up a state from the key, the nonce/IV and the blockcounter,
+     * exactly as {@link ChaCha#get_context(byte[], byte[], byte[])} does
+     * for the matrix.
+     *
+     * @param state is STATE_LENGTH ints, overwritten
+     * @param key is KEY_LENGTH (32 bytes recommended) or SMALL_KEY_LENGTH (16 bytes)
+     * @param iv is IV_LENGTH (8 bytes)
+     * @param blockcounter is BLOCKCOUNTER_LENGTH (8 bytes) in ChaCha little-endian order
+     */
+    public static void initState(int[] state, byte[] key, byte[] iv, byte[] blockcounter)
+    {
+        if (iv.length != ChaCha.IV_LENGTH)
+            throw new IllegalArgumentException("iv/nonce length must be 8 bytes");
+        if (blockcounter.length != ChaCha.BLOCKCOUNTER_LENGTH)
+            throw new IllegalArgumentException("blockcounter length must be 8 bytes");
+
+        setKey(state, key);
+        state[COUNTER_LO] = load(blockcounter, 0);
+        state[COUNTER_HI] = load(blockcounter, 4);
+        state[NONCE_0]    = load(iv, 0);
+        state[NONCE_1]    = load(iv, 4);
+    }
+
+    /**
+     * Set up a state in the RFC 8439 layout, where word 12 alone is the
+     * blockcounter and words 13 to 15 are a 96 bit nonce.
+     * The kernels still count in words 12 and 13 together, so the caller
+     * must not run the counter past 2^32 blocks
+     * (see {@link ChaChaIETF} which checks).
+     *
+     * @param state is STATE_LENGTH ints, overwritten
+     * @param key is KEY_LENGTH (32 bytes)
+     * @param nonce is ChaChaIETF.NONCE_LENGTH (12 bytes)
+     * @param counter is the 32 bit blockcounter, unsigned
+     */
+    public static void initStateIETF(int[] state, byte[] key, byte[] nonce, int counter)
+    {
+        if (key.length != ChaCha.KEY_LENGTH)
+            throw new IllegalArgumentException("IETF key length must be 32 bytes");
+        if (nonce.length != ChaChaIETF.NONCE_LENGTH)
+            throw new IllegalArgumentException("IETF nonce length must be 12 bytes");
+
+        setKey(state, key);
+        state[COUNTER_LO] = counter;
+        state[COUNTER_HI] = load(nonce, 0);
+        state[NONCE_0]    = load(nonce, 4);
+        state[NONCE_1]    = load(nonce, 8);
+    }
+
+    /**
+     * Set the constants and key words (0 to 11) of the state,
+     * leaving the blockcounter and nonce alone.
+     * A 16 byte key is doubled, and TAU replaces SIGMA.
+     *
+     * @param state is STATE_LENGTH ints
+     * @param key is KEY_LENGTH or SMALL_KEY_LENGTH bytes
+     */
+    public static void setKey(int[] state, byte[] key)
+    {
+        final int[] greek;
+        final int doubler;
+        if (key.length == ChaCha.KEY_LENGTH) {
+            greek   = ChaCha.SIGMA_32;
+            doubler = 16;
+        } else if (key.length == ChaCha.SMALL_KEY_LENGTH) {
+            greek   = ChaCha.TAU_16;
+            doubler = 0;
+        } else {
+            throw new IllegalArgumentException("key length must be 16/128bits or 32/256bits");
+        }
+
+        for (int i = 0; i < 4; i++) {
+            state[i]     = greek[i];
+            state[4 + i] = load(key, 4*i);
+            state[8 + i] = load(key, 4*i + doubler);
+        }
+    }
+
+    /** @return the 64 bit blockcounter held in words 12 and 13 */
+    public static long getCounter(int[] state)
+    {
+        return (state[COUNTER_HI] & 0xFFFFFFFFL) << 32 | (state[COUNTER_LO] & 0xFFFFFFFFL);
+    }
+
+    /** Set the 64 bit blockcounter held in words 12 and 13. */
+    public static void setCounter(int[] state, long blockcounter)
+    {
+        state[COUNTER_LO] = (int) blockcounter;
+        state[COUNTER_HI] = (int) (blockcounter >>> 32);
+    }
+
+    /** Zero a state or scratch array, for hygiene. */
+    public static void destroy(int[] state)
+    {
+        for (int i = 0; i < state.length; i++)
+            state[i] = 0;
+    }
+
+    /**
+     * Compute the keystream words for the block pointed to by state,
+     * and advance the blockcounter by one.
+     * The three standard round counts go to their unrolled kernels,
+     * which are unrolled as far as pays:  CHACHA8 fully, CHACHA12 and
+     * CHACHA20 by half, run twice.  A fully unrolled CHACHA20 is over 6KB
+     * of bytecode, and C2 makes it slower than the plain loop.
+     *
+     * @param state is the context, the blockcounter is incremented
+     * @param x receives the 16 keystream words
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public static void block(int[] state, int[] x, final int rounds)
+    {
+        switch (rounds) {
+            case ChaCha.CHACHA20:   block20(state, x);                  break;
+            case ChaCha.CHACHA12:   block12(state, x);                  break;
+            case ChaCha.CHACHA8:    block8(state, x);                   break;
+            default:                blockLoop(state, x, rounds);        break;
+        }
+    }
+
+    /**
+     * block() for any number of double rounds, looping over them.
+     * Only for round counts without an unrolled kernel.
+     */
+    static void blockLoop(int[] state, int[] x, final int rounds)
+    {
+        int x0  = state[0],  x1  = state[1],  x2  = state[2],  x3  = state[3],
+            x4  = state[4],  x5  = state[5],  x6  = state[6],  x7  = state[7],
+            x8  = state[8],  x9  = state[9],  x10 = state[10], x11 = state[11],
+            x12 = state[12], x13 = state[13], x14 = state[14], x15 = state[15];
+
+        for (int i = rounds; i > 0; i--) {
+            // on round, columns
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+
+            // off round, south east diagonals
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+        }
+
+        x[0]  = x0  + state[0];   x[1]  = x1  + state[1];
+        x[2]  = x2  + state[2];   x[3]  = x3  + state[3];
+        x[4]  = x4  + state[4];   x[5]  = x5  + state[5];
+        x[6]  = x6  + state[6];   x[7]  = x7  + state[7];
+        x[8]  = x8  + state[8];   x[9]  = x9  + state[9];
+        x[10] = x10 + state[10];  x[11] = x11 + state[11];
+        x[12] = x12 + state[12];  x[13] = x13 + state[13];
+        x[14] = x14 + state[14];  x[15] = x15 + state[15];
+
+        increment(state);
+    }
+
+    /**
+     * block() for CHACHA8, all 4 double rounds unrolled.
+     */
+    static void block8(int[] state, int[] x)
+    {
+        int x0  = state[0],  x1  = state[1],  x2  = state[2],  x3  = state[3],
+            x4  = state[4],  x5  = state[5],  x6  = state[6],  x7  = state[7],
+            x8  = state[8],  x9  = state[9],  x10 = state[10], x11 = state[11],
+            x12 = state[12], x13 = state[13], x14 = state[14], x15 = state[15];
+
+        // double round 1, columns then diagonals
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+        // double round 2, columns then diagonals
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+        // double round 3, columns then diagonals
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+        // double round 4, columns then diagonals
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+        x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+        x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+        x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+        x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+        x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+        x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+        x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+        x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+        x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+        x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+        x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+        x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+        x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+        x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+        x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+        x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+        x[0]  = x0  + state[0];   x[1]  = x1  + state[1];
+        x[2]  = x2  + state[2];   x[3]  = x3  + state[3];
+        x[4]  = x4  + state[4];   x[5]  = x5  + state[5];
+        x[6]  = x6  + state[6];   x[7]  = x7  + state[7];
+        x[8]  = x8  + state[8];   x[9]  = x9  + state[9];
+        x[10] = x10 + state[10];  x[11] = x11 + state[11];
+        x[12] = x12 + state[12];  x[13] = x13 + state[13];
+        x[14] = x14 + state[14];  x[15] = x15 + state[15];
+
+        increment(state);
+    }
+
+    /**
+     * block() for CHACHA12:  a loop of two trips over 3 unrolled double rounds.
+     */
+    static void block12(int[] state, int[] x)
+    {
+        int x0  = state[0],  x1  = state[1],  x2  = state[2],  x3  = state[3],
+            x4  = state[4],  x5  = state[5],  x6  = state[6],  x7  = state[7],
+            x8  = state[8],  x9  = state[9],  x10 = state[10], x11 = state[11],
+            x12 = state[12], x13 = state[13], x14 = state[14], x15 = state[15];
+
+        for (int i = 0; i < 2; i++) {
+            // double round 1 of 3, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+            // double round 2 of 3, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+            // double round 3 of 3, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+        }
+
+        x[0]  = x0  + state[0];   x[1]  = x1  + state[1];
+        x[2]  = x2  + state[2];   x[3]  = x3  + state[3];
+        x[4]  = x4  + state[4];   x[5]  = x5  + state[5];
+        x[6]  = x6  + state[6];   x[7]  = x7  + state[7];
+        x[8]  = x8  + state[8];   x[9]  = x9  + state[9];
+        x[10] = x10 + state[10];  x[11] = x11 + state[11];
+        x[12] = x12 + state[12];  x[13] = x13 + state[13];
+        x[14] = x14 + state[14];  x[15] = x15 + state[15];
+
+        increment(state);
+    }
+
+    /**
+     * block() for CHACHA20:  a loop of two trips over 5 unrolled double rounds.
+     */
+    static void block20(int[] state, int[] x)
+    {
+        int x0  = state[0],  x1  = state[1],  x2  = state[2],  x3  = state[3],
+            x4  = state[4],  x5  = state[5],  x6  = state[6],  x7  = state[7],
+            x8  = state[8],  x9  = state[9],  x10 = state[10], x11 = state[11],
+            x12 = state[12], x13 = state[13], x14 = state[14], x15 = state[15];
+
+        for (int i = 0; i < 2; i++) {
+            // double round 1 of 5, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+            // double round 2 of 5, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+            // double round 3 of 5, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+            // double round 4 of 5, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+
+            // double round 5 of 5, columns then diagonals
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,  16);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,  12);
+            x0  += x4;  x12 = Integer.rotateLeft(x12 ^ x0,   8);
+            x8  += x12; x4  = Integer.rotateLeft(x4  ^ x8,   7);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,  16);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,  12);
+            x1  += x5;  x13 = Integer.rotateLeft(x13 ^ x1,   8);
+            x9  += x13; x5  = Integer.rotateLeft(x5  ^ x9,   7);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,  16);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10, 12);
+            x2  += x6;  x14 = Integer.rotateLeft(x14 ^ x2,   8);
+            x10 += x14; x6  = Integer.rotateLeft(x6  ^ x10,  7);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,  16);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11, 12);
+            x3  += x7;  x15 = Integer.rotateLeft(x15 ^ x3,   8);
+            x11 += x15; x7  = Integer.rotateLeft(x7  ^ x11,  7);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,  16);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10, 12);
+            x0  += x5;  x15 = Integer.rotateLeft(x15 ^ x0,   8);
+            x10 += x15; x5  = Integer.rotateLeft(x5  ^ x10,  7);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,  16);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11, 12);
+            x1  += x6;  x12 = Integer.rotateLeft(x12 ^ x1,   8);
+            x11 += x12; x6  = Integer.rotateLeft(x6  ^ x11,  7);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,  16);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,  12);
+            x2  += x7;  x13 = Integer.rotateLeft(x13 ^ x2,   8);
+            x8  += x13; x7  = Integer.rotateLeft(x7  ^ x8,   7);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,  16);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,  12);
+            x3  += x4;  x14 = Integer.rotateLeft(x14 ^ x3,   8);
+            x9  += x14; x4  = Integer.rotateLeft(x4  ^ x9,   7);
+        }
+
+        x[0]  = x0  + state[0];   x[1]  = x1  + state[1];
+        x[2]  = x2  + state[2];   x[3]  = x3  + state[3];
+        x[4]  = x4  + state[4];   x[5]  = x5  + state[5];
+        x[6]  = x6  + state[6];   x[7]  = x7  + state[7];
+        x[8]  = x8  + state[8];   x[9]  = x9  + state[9];
+        x[10] = x10 + state[10];  x[11] = x11 + state[11];
+        x[12] = x12 + state[12];  x[13] = x13 + state[13];
+        x[14] = x14 + state[14];  x[15] = x15 + state[15];
+
+        increment(state);
+    }
+
+    /**
+     * Compute four consecutive keystream blocks at once, and advance the
+     * blockcounter by four.  The blocks differ only in their counter
+     * words, so the four are run side by side through each quarter round,
+     * which gives the CPU four independent dependency chains to overlap
+     * where a single block has one.
+     *
+     * @param state is the context, the blockcounter is advanced by 4
+     * @param x receives the 64 keystream words, block after block
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public static void block4(int[] state, int[] x, final int rounds)
+    {
+        final int lo = state[COUNTER_LO], hi = state[COUNTER_HI];
+        final int lo1 = lo + 1, lo2 = lo + 2, lo3 = lo + 3;
+        final int hi1 = (lo1 == 0) ? hi + 1 : hi;
+        final int hi2 = (Integer.compareUnsigned(lo2, lo) < 0) ? hi + 1 : hi;
+        final int hi3 = (Integer.compareUnsigned(lo3, lo) < 0) ? hi + 1 : hi;
+
+        int a0  = state[0] ,  a1  = state[1] ,  a2  = state[2] ,  a3  = state[3],
+            a4  = state[4] ,  a5  = state[5] ,  a6  = state[6] ,  a7  = state[7],
+            a8  = state[8] ,  a9  = state[9] ,  a10 = state[10],  a11 = state[11],
+            a12 = state[12],  a13 = state[13],  a14 = state[14],  a15 = state[15];
+        int b0  = a0 ,  b1  = a1 ,  b2  = a2 ,  b3  = a3,
+            b4  = a4 ,  b5  = a5 ,  b6  = a6 ,  b7  = a7,
+            b8  = a8 ,  b9  = a9 ,  b10 = a10,  b11 = a11,
+            b12 = lo1,  b13 = hi1,  b14 = a14,  b15 = a15;
+        int c0  = a0 ,  c1  = a1 ,  c2  = a2 ,  c3  = a3,
+            c4  = a4 ,  c5  = a5 ,  c6  = a6 ,  c7  = a7,
+            c8  = a8 ,  c9  = a9 ,  c10 = a10,  c11 = a11,
+            c12 = lo2,  c13 = hi2,  c14 = a14,  c15 = a15;
+        int d0  = a0 ,  d1  = a1 ,  d2  = a2 ,  d3  = a3,
+            d4  = a4 ,  d5  = a5 ,  d6  = a6 ,  d7  = a7,
+            d8  = a8 ,  d9  = a9 ,  d10 = a10,  d11 = a11,
+            d12 = lo3,  d13 = hi3,  d14 = a14,  d15 = a15;
+
+        for (int i = rounds; i > 0; i--) {
+            // on round, columns
+            a0  += a4;  a12 = Integer.rotateLeft(a12 ^ a0,  16);   b0  += b4;  b12 = Integer.rotateLeft(b12 ^ b0,  16);
+            c0  += c4;  c12 = Integer.rotateLeft(c12 ^ c0,  16);   d0  += d4;  d12 = Integer.rotateLeft(d12 ^ d0,  16);
+            a8  += a12; a4  = Integer.rotateLeft(a4  ^ a8,  12);   b8  += b12; b4  = Integer.rotateLeft(b4  ^ b8,  12);
+            c8  += c12; c4  = Integer.rotateLeft(c4  ^ c8,  12);   d8  += d12; d4  = Integer.rotateLeft(d4  ^ d8,  12);
+            a0  += a4;  a12 = Integer.rotateLeft(a12 ^ a0,   8);   b0  += b4;  b12 = Integer.rotateLeft(b12 ^ b0,   8);
+            c0  += c4;  c12 = Integer.rotateLeft(c12 ^ c0,   8);   d0  += d4;  d12 = Integer.rotateLeft(d12 ^ d0,   8);
+            a8  += a12; a4  = Integer.rotateLeft(a4  ^ a8,   7);   b8  += b12; b4  = Integer.rotateLeft(b4  ^ b8,   7);
+            c8  += c12; c4  = Integer.rotateLeft(c4  ^ c8,   7);   d8  += d12; d4  = Integer.rotateLeft(d4  ^ d8,   7);
+            a1  += a5;  a13 = Integer.rotateLeft(a13 ^ a1,  16);   b1  += b5;  b13 = Integer.rotateLeft(b13 ^ b1,  16);
+            c1  += c5;  c13 = Integer.rotateLeft(c13 ^ c1,  16);   d1  += d5;  d13 = Integer.rotateLeft(d13 ^ d1,  16);
+            a9  += a13; a5  = Integer.rotateLeft(a5  ^ a9,  12);   b9  += b13; b5  = Integer.rotateLeft(b5  ^ b9,  12);
+            c9  += c13; c5  = Integer.rotateLeft(c5  ^ c9,  12);   d9  += d13; d5  = Integer.rotateLeft(d5  ^ d9,  12);
+            a1  += a5;  a13 = Integer.rotateLeft(a13 ^ a1,   8);   b1  += b5;  b13 = Integer.rotateLeft(b13 ^ b1,   8);
+            c1  += c5;  c13 = Integer.rotateLeft(c13 ^ c1,   8);   d1  += d5;  d13 = Integer.rotateLeft(d13 ^ d1,   8);
+            a9  += a13; a5  = Integer.rotateLeft(a5  ^ a9,   7);   b9  += b13; b5  = Integer.rotateLeft(b5  ^ b9,   7);
+            c9  += c13; c5  = Integer.rotateLeft(c5  ^ c9,   7);   d9  += d13; d5  = Integer.rotateLeft(d5  ^ d9,   7);
+            a2  += a6;  a14 = Integer.rotateLeft(a14 ^ a2,  16);   b2  += b6;  b14 = Integer.rotateLeft(b14 ^ b2,  16);
+            c2  += c6;  c14 = Integer.rotateLeft(c14 ^ c2,  16);   d2  += d6;  d14 = Integer.rotateLeft(d14 ^ d2,  16);
+            a10 += a14; a6  = Integer.rotateLeft(a6  ^ a10, 12);   b10 += b14; b6  = Integer.rotateLeft(b6  ^ b10, 12);
+            c10 += c14; c6  = Integer.rotateLeft(c6  ^ c10, 12);   d10 += d14; d6  = Integer.rotateLeft(d6  ^ d10, 12);
+            a2  += a6;  a14 = Integer.rotateLeft(a14 ^ a2,   8);   b2  += b6;  b14 = Integer.rotateLeft(b14 ^ b2,   8);
+            c2  += c6;  c14 = Integer.rotateLeft(c14 ^ c2,   8);   d2  += d6;  d14 = Integer.rotateLeft(d14 ^ d2,   8);
+            a10 += a14; a6  = Integer.rotateLeft(a6  ^ a10,  7);   b10 += b14; b6  = Integer.rotateLeft(b6  ^ b10,  7);
+            c10 += c14; c6  = Integer.rotateLeft(c6  ^ c10,  7);   d10 += d14; d6  = Integer.rotateLeft(d6  ^ d10,  7);
+            a3  += a7;  a15 = Integer.rotateLeft(a15 ^ a3,  16);   b3  += b7;  b15 = Integer.rotateLeft(b15 ^ b3,  16);
+            c3  += c7;  c15 = Integer.rotateLeft(c15 ^ c3,  16);   d3  += d7;  d15 = Integer.rotateLeft(d15 ^ d3,  16);
+            a11 += a15; a7  = Integer.rotateLeft(a7  ^ a11, 12);   b11 += b15; b7  = Integer.rotateLeft(b7  ^ b11, 12);
+            c11 += c15; c7  = Integer.rotateLeft(c7  ^ c11, 12);   d11 += d15; d7  = Integer.rotateLeft(d7  ^ d11, 12);
+            a3  += a7;  a15 = Integer.rotateLeft(a15 ^ a3,   8);   b3  += b7;  b15 = Integer.rotateLeft(b15 ^ b3,   8);
+            c3  += c7;  c15 = Integer.rotateLeft(c15 ^ c3,   8);   d3  += d7;  d15 = Integer.rotateLeft(d15 ^ d3,   8);
+            a11 += a15; a7  = Integer.rotateLeft(a7  ^ a11,  7);   b11 += b15; b7  = Integer.rotateLeft(b7  ^ b11,  7);
+            c11 += c15; c7  = Integer.rotateLeft(c7  ^ c11,  7);   d11 += d15; d7  = Integer.rotateLeft(d7  ^ d11,  7);
+
+            // off round, south east diagonals
+            a0  += a5;  a15 = Integer.rotateLeft(a15 ^ a0,  16);   b0  += b5;  b15 = Integer.rotateLeft(b15 ^ b0,  16);
+            c0  += c5;  c15 = Integer.rotateLeft(c15 ^ c0,  16);   d0  += d5;  d15 = Integer.rotateLeft(d15 ^ d0,  16);
+            a10 += a15; a5  = Integer.rotateLeft(a5  ^ a10, 12);   b10 += b15; b5  = Integer.rotateLeft(b5  ^ b10, 12);
+            c10 += c15; c5  = Integer.rotateLeft(c5  ^ c10, 12);   d10 += d15; d5  = Integer.rotateLeft(d5  ^ d10, 12);
+            a0  += a5;  a15 = Integer.rotateLeft(a15 ^ a0,   8);   b0  += b5;  b15 = Integer.rotateLeft(b15 ^ b0,   8);
+            c0  += c5;  c15 = Integer.rotateLeft(c15 ^ c0,   8);   d0  += d5;  d15 = Integer.rotateLeft(d15 ^ d0,   8);
+            a10 += a15; a5  = Integer.rotateLeft(a5  ^ a10,  7);   b10 += b15; b5  = Integer.rotateLeft(b5  ^ b10,  7);
+            c10 += c15; c5  = Integer.rotateLeft(c5  ^ c10,  7);   d10 += d15; d5  = Integer.rotateLeft(d5  ^ d10,  7);
+            a1  += a6;  a12 = Integer.rotateLeft(a12 ^ a1,  16);   b1  += b6;  b12 = Integer.rotateLeft(b12 ^ b1,  16);
+            c1  += c6;  c12 = Integer.rotateLeft(c12 ^ c1,  16);   d1  += d6;  d12 = Integer.rotateLeft(d12 ^ d1,  16);
+            a11 += a12; a6  = Integer.rotateLeft(a6  ^ a11, 12);   b11 += b12; b6  = Integer.rotateLeft(b6  ^ b11, 12);
+            c11 += c12; c6  = Integer.rotateLeft(c6  ^ c11, 12);   d11 += d12; d6  = Integer.rotateLeft(d6  ^ d11, 12);
+            a1  += a6;  a12 = Integer.rotateLeft(a12 ^ a1,   8);   b1  += b6;  b12 = Integer.rotateLeft(b12 ^ b1,   8);
+            c1  += c6;  c12 = Integer.rotateLeft(c12 ^ c1,   8);   d1  += d6;  d12 = Integer.rotateLeft(d12 ^ d1,   8);
+            a11 += a12; a6  = Integer.rotateLeft(a6  ^ a11,  7);   b11 += b12; b6  = Integer.rotateLeft(b6  ^ b11,  7);
+            c11 += c12; c6  = Integer.rotateLeft(c6  ^ c11,  7);   d11 += d12; d6  = Integer.rotateLeft(d6  ^ d11,  7);
+            a2  += a7;  a13 = Integer.rotateLeft(a13 ^ a2,  16);   b2  += b7;  b13 = Integer.rotateLeft(b13 ^ b2,  16);
+            c2  += c7;  c13 = Integer.rotateLeft(c13 ^ c2,  16);   d2  += d7;  d13 = Integer.rotateLeft(d13 ^ d2,  16);
+            a8  += a13; a7  = Integer.rotateLeft(a7  ^ a8,  12);   b8  += b13; b7  = Integer.rotateLeft(b7  ^ b8,  12);
+            c8  += c13; c7  = Integer.rotateLeft(c7  ^ c8,  12);   d8  += d13; d7  = Integer.rotateLeft(d7  ^ d8,  12);
+            a2  += a7;  a13 = Integer.rotateLeft(a13 ^ a2,   8);   b2  += b7;  b13 = Integer.rotateLeft(b13 ^ b2,   8);
+            c2  += c7;  c13 = Integer.rotateLeft(c13 ^ c2,   8);   d2  += d7;  d13 = Integer.rotateLeft(d13 ^ d2,   8);
+            a8  += a13; a7  = Integer.rotateLeft(a7  ^ a8,   7);   b8  += b13; b7  = Integer.rotateLeft(b7  ^ b8,   7);
+            c8  += c13; c7  = Integer.rotateLeft(c7  ^ c8,   7);   d8  += d13; d7  = Integer.rotateLeft(d7  ^ d8,   7);
+            a3  += a4;  a14 = Integer.rotateLeft(a14 ^ a3,  16);   b3  += b4;  b14 = Integer.rotateLeft(b14 ^ b3,  16);
+            c3  += c4;  c14 = Integer.rotateLeft(c14 ^ c3,  16);   d3  += d4;  d14 = Integer.rotateLeft(d14 ^ d3,  16);
+            a9  += a14; a4  = Integer.rotateLeft(a4  ^ a9,  12);   b9  += b14; b4  = Integer.rotateLeft(b4  ^ b9,  12);
+            c9  += c14; c4  = Integer.rotateLeft(c4  ^ c9,  12);   d9  += d14; d4  = Integer.rotateLeft(d4  ^ d9,  12);
+            a3  += a4;  a14 = Integer.rotateLeft(a14 ^ a3,   8);   b3  += b4;  b14 = Integer.rotateLeft(b14 ^ b3,   8);
+            c3  += c4;  c14 = Integer.rotateLeft(c14 ^ c3,   8);   d3  += d4;  d14 = Integer.rotateLeft(d14 ^ d3,   8);
+            a9  += a14; a4  = Integer.rotateLeft(a4  ^ a9,   7);   b9  += b14; b4  = Integer.rotateLeft(b4  ^ b9,   7);
+            c9  += c14; c4  = Integer.rotateLeft(c4  ^ c9,   7);   d9  += d14; d4  = Integer.rotateLeft(d4  ^ d9,   7);
+        }
+
+        x[0]  = a0  + state[0];       x[1]  = a1  + state[1];
+        x[2]  = a2  + state[2];       x[3]  = a3  + state[3];
+        x[4]  = a4  + state[4];       x[5]  = a5  + state[5];
+        x[6]  = a6  + state[6];       x[7]  = a7  + state[7];
+        x[8]  = a8  + state[8];       x[9]  = a9  + state[9];
+        x[10] = a10 + state[10];      x[11] = a11 + state[11];
+        x[12] = a12 + state[12];      x[13] = a13 + state[13];
+        x[14] = a14 + state[14];      x[15] = a15 + state[15];
+
+        x[16] = b0  + state[0];       x[17] = b1  + state[1];
+        x[18] = b2  + state[2];       x[19] = b3  + state[3];
+        x[20] = b4  + state[4];       x[21] = b5  + state[5];
+        x[22] = b6  + state[6];       x[23] = b7  + state[7];
+        x[24] = b8  + state[8];       x[25] = b9  + state[9];
+        x[26] = b10 + state[10];      x[27] = b11 + state[11];
+        x[28] = b12 + lo1;            x[29] = b13 + hi1;
+        x[30] = b14 + state[14];      x[31] = b15 + state[15];
+
+        x[32] = c0  + state[0];       x[33] = c1  + state[1];
+        x[34] = c2  + state[2];       x[35] = c3  + state[3];
+        x[36] = c4  + state[4];       x[37] = c5  + state[5];
+        x[38] = c6  + state[6];       x[39] = c7  + state[7];
+        x[40] = c8  + state[8];       x[41] = c9  + state[9];
+        x[42] = c10 + state[10];      x[43] = c11 + state[11];
+        x[44] = c12 + lo2;            x[45] = c13 + hi2;
+        x[46] = c14 + state[14];      x[47] = c15 + state[15];
+
+        x[48] = d0  + state[0];       x[49] = d1  + state[1];
+        x[50] = d2  + state[2];       x[51] = d3  + state[3];
+        x[52] = d4  + state[4];       x[53] = d5  + state[5];
+        x[54] = d6  + state[6];       x[55] = d7  + state[7];
+        x[56] = d8  + state[8];       x[57] = d9  + state[9];
+        x[58] = d10 + state[10];      x[59] = d11 + state[11];
+        x[60] = d12 + lo3;            x[61] = d13 + hi3;
+        x[62] = d14 + state[14];      x[63] = d15 + state[15];
+
+        state[COUNTER_LO] = lo + MULTI_BLOCKS;
+        if (Integer.compareUnsigned(lo + MULTI_BLOCKS, lo) < 0)
+            state[COUNTER_HI] = hi + 1;
+    }
+
+    /**
+     * Write one block of keystream into out (assigned, not xor'd),
+     * and advance the blockcounter.
+     *
+     * @param state is the context
+     * @param x is scratch of STATE_LENGTH ints
+     * @param out receives OUTPUT_BLOCK_SIZE bytes at outOff
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public static void keystream(int[] state, int[] x, byte[] out, int outOff, final int rounds)
+    {
+        block(state, x, rounds);
+        for (int i = 0; i < STATE_LENGTH; i++, outOff += 4)
+            store(out, outOff, x[i]);
+    }
+
+    /**
+     * XOR len bytes of in with the keystream into out.
+     * Starts at the block boundary in state, and advances the blockcounter
+     * by one for every block touched, including a final partial block
+     * (which is the {@link ChaCha#crypto_stream_xor} convention).
+     * In and out may be the same array at the same offset.
+     *
+     * @param state is the context
+     * @param x is scratch of STATE_LENGTH, or better SCRATCH_LENGTH, ints
+     * @param in is the input, read from inOff
+     * @param out is the output, written from outOff
+     * @param len is the number of bytes to process
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public static void xor(int[] state, int[] x, byte[] in, int inOff, byte[] out, int outOff, int len, final int rounds)
+    {
+        // one switch per call, then a loop calling its kernel directly
+        switch (rounds) {
+            case ChaCha.CHACHA20:   xor20(state, x, in, inOff, out, outOff, len);           break;
+            case ChaCha.CHACHA12:   xor12(state, x, in, inOff, out, outOff, len);           break;
+            case ChaCha.CHACHA8:    xor8(state, x, in, inOff, out, outOff, len);            break;
+            default:                xorLoop(state, x, in, inOff, out, outOff, len, rounds); break;
+        }
+        /* stopping at 2^70 bytes per nonce is user's responsibility-- C code*/
+    }
+
+    private static void xor20(int[] state, int[] x, byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inOff += MULTI_BLOCK_SIZE, outOff += MULTI_BLOCK_SIZE) {
+                block4(state, x, ChaCha.CHACHA20);
+                xorWords(x, SCRATCH_LENGTH, in, inOff, out, outOff);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inOff += ChaCha.OUTPUT_BLOCK_SIZE, outOff += ChaCha.OUTPUT_BLOCK_SIZE) {
+            block20(state, x);
+            xorWords(x, STATE_LENGTH, in, inOff, out, outOff);
+        }
+        if (len > 0) {
+            block20(state, x);
+            xorTail(x, in, inOff, out, outOff, len);
+        }
+    }
+
+    private static void xor12(int[] state, int[] x, byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inOff += MULTI_BLOCK_SIZE, outOff += MULTI_BLOCK_SIZE) {
+                block4(state, x, ChaCha.CHACHA12);
+                xorWords(x, SCRATCH_LENGTH, in, inOff, out, outOff);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inOff += ChaCha.OUTPUT_BLOCK_SIZE, outOff += ChaCha.OUTPUT_BLOCK_SIZE) {
+            block12(state, x);
+            xorWords(x, STATE_LENGTH, in, inOff, out, outOff);
+        }
+        if (len > 0) {
+            block12(state, x);
+            xorTail(x, in, inOff, out, outOff, len);
+        }
+    }
+
+    private static void xor8(int[] state, int[] x, byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inOff += MULTI_BLOCK_SIZE, outOff += MULTI_BLOCK_SIZE) {
+                block4(state, x, ChaCha.CHACHA8);
+                xorWords(x, SCRATCH_LENGTH, in, inOff, out, outOff);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inOff += ChaCha.OUTPUT_BLOCK_SIZE, outOff += ChaCha.OUTPUT_BLOCK_SIZE) {
+            block8(state, x);
+            xorWords(x, STATE_LENGTH, in, inOff, out, outOff);
+        }
+        if (len > 0) {
+            block8(state, x);
+            xorTail(x, in, inOff, out, outOff, len);
+        }
+    }
+
+    /** For round counts without an unrolled kernel. */
+    private static void xorLoop(int[] state, int[] x, byte[] in, int inOff, byte[] out, int outOff, int len, final int rounds)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inOff += MULTI_BLOCK_SIZE, outOff += MULTI_BLOCK_SIZE) {
+                block4(state, x, rounds);
+                xorWords(x, SCRATCH_LENGTH, in, inOff, out, outOff);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inOff += ChaCha.OUTPUT_BLOCK_SIZE, outOff += ChaCha.OUTPUT_BLOCK_SIZE) {
+            blockLoop(state, x, rounds);
+            xorWords(x, STATE_LENGTH, in, inOff, out, outOff);
+        }
+        if (len > 0) {
+            blockLoop(state, x, rounds);
+            xorTail(x, in, inOff, out, outOff, len);
+        }
+    }
+
+    private static void xorWords(int[] x, final int words, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        for (int i = 0; i < words; i++, inOff += 4, outOff += 4)
+            store(out, outOff, x[i] ^ load(in, inOff));
+    }
+
+    private static void xorTail(int[] x, byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        for (int i = 0; i < len; i++)
+            out[outOff + i] = (byte) (in[inOff + i] ^ (x[i >>> 2] >>> ((i & 3) << 3)));
+    }
+
+    /**
+     * XOR len bytes of in with the keystream into out, as above, for
+     * buffers.  Positions are absolute, and neither buffer's position
+     * or limit is touched;  the caller checks the bounds.
+     * Buffers backed by arrays go through the array code, others
+     * (direct, read-only) are accessed a word at a time, whatever
+     * their byte order.  In and out may be the same buffer at the
+     * same position.
+     *
+     * @param state is the context
+     * @param x is scratch of STATE_LENGTH, or better SCRATCH_LENGTH, ints
+     * @param in is the input, read from inPos
+     * @param out is the output, written from outPos
+     * @param len is the number of bytes to process
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public static void xor(int[] state, int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len, final int rounds)
+    {
+        if (in.hasArray() && out.hasArray()) {
+            xor(state, x, in.array(), in.arrayOffset() + inPos, out.array(), out.arrayOffset() + outPos, len, rounds);
+            return;
+        }
+
+        switch (rounds) {
+            case ChaCha.CHACHA20:   xor20(state, x, in, inPos, out, outPos, len);           break;
+            case ChaCha.CHACHA12:   xor12(state, x, in, inPos, out, outPos, len);           break;
+            case ChaCha.CHACHA8:    xor8(state, x, in, inPos, out, outPos, len);            break;
+            default:                xorLoop(state, x, in, inPos, out, outPos, len, rounds); break;
+        }
+    }
+
+    private static void xor20(int[] state, int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inPos += MULTI_BLOCK_SIZE, outPos += MULTI_BLOCK_SIZE) {
+                block4(state, x, ChaCha.CHACHA20);
+                xorWords(x, SCRATCH_LENGTH, in, inPos, out, outPos);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inPos += ChaCha.OUTPUT_BLOCK_SIZE, outPos += ChaCha.OUTPUT_BLOCK_SIZE) {
+            block20(state, x);
+            xorWords(x, STATE_LENGTH, in, inPos, out, outPos);
+        }
+        if (len > 0) {
+            block20(state, x);
+            xorTail(x, in, inPos, out, outPos, len);
+        }
+    }
+
+    private static void xor12(int[] state, int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inPos += MULTI_BLOCK_SIZE, outPos += MULTI_BLOCK_SIZE) {
+                block4(state, x, ChaCha.CHACHA12);
+                xorWords(x, SCRATCH_LENGTH, in, inPos, out, outPos);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inPos += ChaCha.OUTPUT_BLOCK_SIZE, outPos += ChaCha.OUTPUT_BLOCK_SIZE) {
+            block12(state, x);
+            xorWords(x, STATE_LENGTH, in, inPos, out, outPos);
+        }
+        if (len > 0) {
+            block12(state, x);
+            xorTail(x, in, inPos, out, outPos, len);
+        }
+    }
+
+    private static void xor8(int[] state, int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inPos += MULTI_BLOCK_SIZE, outPos += MULTI_BLOCK_SIZE) {
+                block4(state, x, ChaCha.CHACHA8);
+                xorWords(x, SCRATCH_LENGTH, in, inPos, out, outPos);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inPos += ChaCha.OUTPUT_BLOCK_SIZE, outPos += ChaCha.OUTPUT_BLOCK_SIZE) {
+            block8(state, x);
+            xorWords(x, STATE_LENGTH, in, inPos, out, outPos);
+        }
+        if (len > 0) {
+            block8(state, x);
+            xorTail(x, in, inPos, out, outPos, len);
+        }
+    }
+
+    private static void xorLoop(int[] state, int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len, final int rounds)
+    {
+        if (x.length >= SCRATCH_LENGTH)
+            for (; len >= MULTI_BLOCK_SIZE; len -= MULTI_BLOCK_SIZE, inPos += MULTI_BLOCK_SIZE, outPos += MULTI_BLOCK_SIZE) {
+                block4(state, x, rounds);
+                xorWords(x, SCRATCH_LENGTH, in, inPos, out, outPos);
+            }
+        for (; len >= ChaCha.OUTPUT_BLOCK_SIZE; len -= ChaCha.OUTPUT_BLOCK_SIZE, inPos += ChaCha.OUTPUT_BLOCK_SIZE, outPos += ChaCha.OUTPUT_BLOCK_SIZE) {
+            blockLoop(state, x, rounds);
+            xorWords(x, STATE_LENGTH, in, inPos, out, outPos);
+        }
+        if (len > 0) {
+            blockLoop(state, x, rounds);
+            xorTail(x, in, inPos, out, outPos, len);
+        }
+    }
+
+    /** getInt/putInt follow the buffer's order, ChaCha is little-endian. */
+    private static void xorWords(int[] x, final int words, ByteBuffer in, int inPos, ByteBuffer out, int outPos)
+    {
+        final boolean inSwap  = in.order()  == ByteOrder.BIG_ENDIAN;
+        final boolean outSwap = out.order() == ByteOrder.BIG_ENDIAN;
+        for (int i = 0; i < words; i++, inPos += 4, outPos += 4) {
+            int w = in.getInt(inPos);
+            if (inSwap)
+                w = Integer.reverseBytes(w);
+            w ^= x[i];
+            out.putInt(outPos, outSwap ? Integer.reverseBytes(w) : w);
+        }
+    }
+
+    private static void xorTail(int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len)
+    {
+        for (int i = 0; i < len; i++)
+            out.put(outPos + i, (byte) (in.get(inPos + i) ^ (x[i >>> 2] >>> ((i & 3) << 3))));
+    }
+
+    static void increment(int[] state)
+    {
+        if (++state[COUNTER_LO] == 0)
+            ++state[COUNTER_HI];     // relies on Java overflow addition performing nicely
+    }
+
+    static int load(byte[] b, int off)
+    {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | b[off + 3] << 24;
+    }
+
+    static void store(byte[] b, int off, int w)
+    {
+        b[off]     = (byte) w;
+        b[off + 1] = (byte) (w >>> 8);
+        b[off + 2] = (byte) (w >>> 16);
+        b[off + 3] = (byte) (w >>> 24);
+    }
+}
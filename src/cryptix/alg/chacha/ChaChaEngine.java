@@ -0,0 +1,243 @@
+package cryptix.alg.chacha;
+
+import java.nio.ByteBuffer;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * A stateful ChaCha cryptor.  Key it once with init(), then push
+ * any number of pieces through processBytes(), at any offsets in
+ * the caller's arrays.  Keystream left over at the end of one call
+ * is used up by the next, so a message fed in 13 byte pieces
+ * produces the same result as one call over the whole message,
+ * for about the same cost.
+ * </p><p>
+ * The stream is the same as {@link ChaCha#crypto_stream_xor} given
+ * the same key, IV and blockcounter.  As with the static calls, the
+ * blockcounter counts 64 byte blocks, not bytes.
+ * </p><p>
+ * An engine is not thread safe.  Nothing is allocated after
+ * construction; close() wipes the key material.
+ * </p>
+ *
+ * @see ChaChaCore which does the work
+ */
+public class ChaChaEngine
+    extends StreamEngine
+{
+    /** An engine for CHACHA20, as recommended. */
+    public ChaChaEngine()                { this(ChaCha.CHACHA20); }
+
+    /**
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     */
+    public ChaChaEngine(final int rounds)
+    {
+        super(checkRounds(rounds), ChaChaCore.SCRATCH_LENGTH);
+    }
+
+    private static int checkRounds(final int rounds)
+    {
+        if (rounds != ChaCha.CHACHA8 && rounds != ChaCha.CHACHA12 && rounds != ChaCha.CHACHA20)
+            throw new IllegalArgumentException("rounds must be one of CHACHA8, CHACHA12, CHACHA20");
+        return rounds;
+    }
+
+    /**
+     * Key the engine and position it at the start of a block.
+     *
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     * @param blockcounter is the first block to use (not a byte count)
+     */
+    public void init(byte[] key, byte[] iv, long blockcounter)
+    {
+        ChaChaCore.setKey(state, key);
+        nonce(iv, blockcounter);
+    }
+
+    /**
+     * As above, with the blockcounter in ChaCha small-endian array form.
+     */
+    public void init(byte[] key, byte[] iv, byte[] blockcounter)
+    {
+        ChaChaCore.initState(state, key, iv, blockcounter);
+        started(ChaChaCore.getCounter(state));
+    }
+
+    /**
+     * Start a new stream under the current key, skipping the key setup.
+     * Any leftover keystream is dropped.
+     *
+     * @param iv is IV_LENGTH (8 bytes)
+     * @param blockcounter is the first block to use (not a byte count)
+     */
+    public void setNonce(byte[] iv, long blockcounter)
+    {
+        checkKeyed();
+        nonce(iv, blockcounter);
+    }
+
+    private void nonce(byte[] iv, long blockcounter)
+    {
+        if (iv.length != ChaCha.IV_LENGTH)
+            throw new IllegalArgumentException("iv/nonce length must be 8 bytes");
+
+        state[ChaChaCore.NONCE_0] = ChaChaCore.load(iv, 0);
+        state[ChaChaCore.NONCE_1] = ChaChaCore.load(iv, 4);
+        ChaChaCore.setCounter(state, blockcounter);
+        started(blockcounter);
+    }
+
+    void xor(byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        ChaChaCore.xor(state, x, in, inOff, out, outOff, len, rounds);
+    }
+
+    void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len)
+    {
+        ChaChaCore.xor(state, x, in, inPos, out, outPos, len, rounds);
+    }
+
+    void keystream(byte[] block)
+    {
+        ChaChaCore.keystream(state, x, block, 0, rounds);
+    }
+
+    void setCounter(long blockcounter)
+    {
+        ChaChaCore.setCounter(state, blockcounter);
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * Random messages, chopped into random pieces at random offsets,
+     * must come out the same as one call to crypto_stream_xor.
+     */
+    static String testPieces(final int rounds)
+    {
+        ChaChaEngine engine = new ChaChaEngine(rounds);
+        for (int i = 0; i < 100; i++) {
+            byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+            byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+            long   bc    = Support.exampleInt(0, Integer.MAX_VALUE);
+            int    len   = Support.exampleInt(0, 1000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] expected = new byte[len];
+            ChaCha.crypto_stream_xor(expected, pt, len, nonce, ChaCha.long2bc(bc), key, rounds);
+
+            final int gap = 7;
+            byte[] in  = new byte[len + gap];
+            byte[] out = new byte[len + 2*gap];
+            System.arraycopy(pt, 0, in, gap, len);
+
+            engine.init(key, nonce, bc);
+            int piece = (i % 4 == 0) ? 13 : Support.exampleInt(1, 200);
+            for (int done = 0; done < len; ) {
+                int n = Math.min(piece, len - done);
+                engine.processBytes(in, gap + done, n, out, 2*gap + done);
+                done += n;
+            }
+
+            if (!X.ctEquals(expected, 0, out, 2*gap, len))
+                throw new RuntimeException("engine pieces of " + piece + " differ on len " + len
+                        + "\n\t" + X.data2hex(expected)
+                        + "\n\t" + X.data2hex(X.copy(out, 2*gap, len)));
+        }
+        engine.close();
+        return "Pieces(" + (rounds*2) + ")";
+    }
+
+    /**
+     * The same, through direct buffers in place, in pieces.
+     */
+    static String testBuffers(final int rounds)
+    {
+        ChaChaEngine engine = new ChaChaEngine(rounds);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1100);
+        for (int i = 0; i < 50; i++) {
+            byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+            byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+            int    len   = Support.exampleInt(0, 1000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] expected = new byte[len];
+            ChaCha.crypto_stream_xor(expected, pt, len, nonce, new byte[ChaCha.BLOCKCOUNTER_LENGTH], key, rounds);
+
+            direct.clear().position(33);
+            direct.put(pt).flip().position(33);
+
+            engine.init(key, nonce, 0);
+            int piece = Support.exampleInt(1, 200);
+            while (direct.hasRemaining()) {
+                int pos = direct.position();
+                ByteBuffer window = direct.duplicate();
+                window.limit(Math.min(direct.limit(), pos + piece));
+                engine.processBytes(window, window);
+                direct.position(window.position());
+            }
+
+            byte[] got = new byte[len];
+            direct.position(33);
+            direct.get(got);
+            if (!X.ctEquals(expected, got))
+                throw new RuntimeException("engine buffers of " + piece + " differ on len " + len);
+        }
+        engine.close();
+        return "Buffers(" + (rounds*2) + ")";
+    }
+
+    /**
+     * Seeking to a random byte must give the same bytes as running
+     * the stream up to there.
+     */
+    static String testSeek()
+    {
+        ChaChaEngine engine = new ChaChaEngine();
+        for (int i = 0; i < 100; i++) {
+            byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+            byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+            long   bc    = (i % 2 == 0) ? 0 : 0xFFFFFFFFL - Support.exampleInt(0, 20);
+            int    len   = Support.exampleInt(1, 3000);
+
+            byte[] whole = new byte[len];
+            engine.init(key, nonce, bc);
+            engine.processBytes(whole, 0, len, whole, 0);
+
+            int from = Support.exampleInt(0, len - 1);
+            int n    = Support.exampleInt(0, len - from);
+            byte[] part = new byte[n];
+            engine.seek(from);
+            engine.processBytes(part, 0, n, part, 0);
+
+            if (!X.ctEquals(whole, from, part, 0, n))
+                throw new RuntimeException("seek to " + from + " for " + n + " differs");
+        }
+        engine.close();
+        return "Seek";
+    }
+
+    public static String selfTest()
+    {
+        String s = "ChaChaEngine: ";
+        s += testSeek() + ". ";
+        s += testBuffers(ChaCha.CHACHA20) + ". ";
+        s += testPieces(ChaCha.CHACHA8) + ". ";
+        s += testPieces(ChaCha.CHACHA12) + ". ";
+        s += testPieces(ChaCha.CHACHA20) + ". ";
+        return s + "good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,264 @@
+package cryptix.alg.chacha;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * Crypts whole files with ChaCha through memory mappings, so the data
+ * goes from the page cache through the cipher and back without any copy
+ * on the Java heap.  The file is mapped a window at a time, and the
+ * keystream is xor'd straight into the mapping.
+ * </p><p>
+ * The stream is the one {@link ChaCha#crypto_stream_xor} gives over the
+ * whole file from blockcounter 0.  Windows are a multiple of the block
+ * size, so each window knows its own blockcounter from its file offset,
+ * and windows can be run in parallel on a ForkJoinPool.
+ * </p><p>
+ * Two modes:  in place, which overwrites the file with its crypted self,
+ * and copy, which leaves the source alone and writes a new file.
+ * Changes to a mapping reach the disk when the OS writes the pages back;
+ * call FileChannel.force() or similar if that has to happen now.
+ * </p>
+ *
+ * @see ChaChaCore
+ */
+public class ChaChaFile
+{
+    private ChaChaFile() { }
+
+    /** Default mapping window, a multiple of OUTPUT_BLOCK_SIZE. */
+    public static final int DEFAULT_WINDOW = 16 * 1024 * 1024;
+
+    /**
+     * Easy call, CHACHA20 in place, serially.
+     * @param file is replaced by its crypted self
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     */
+    public static void cryptInPlace(File file, byte[] key, byte[] iv)
+        throws IOException
+    {
+        cryptInPlace(file, key, iv, ChaCha.CHACHA20, DEFAULT_WINDOW, null);
+    }
+
+    /**
+     * Full call, in place.
+     * @param file is replaced by its crypted self
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     * @param window is the mapping size, a positive multiple of OUTPUT_BLOCK_SIZE
+     * @param pool runs the windows in parallel, or null to run them on this thread
+     */
+    public static void cryptInPlace(File file, byte[] key, byte[] iv, final int rounds, int window, ForkJoinPool pool)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            crypt(ch, ch, ch.size(), key, iv, rounds, window, pool);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Easy call, CHACHA20 from one file to another, serially.
+     * @param from is read and left alone
+     * @param to is created or truncated, and gets the crypted from
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     */
+    public static void crypt(File from, File to, byte[] key, byte[] iv)
+        throws IOException
+    {
+        crypt(from, to, key, iv, ChaCha.CHACHA20, DEFAULT_WINDOW, null);
+    }
+
+    /**
+     * Full call, from one file to another.
+     * @param from is read and left alone
+     * @param to is created or truncated, and gets the crypted from
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     * @param window is the mapping size, a positive multiple of OUTPUT_BLOCK_SIZE
+     * @param pool runs the windows in parallel, or null to run them on this thread
+     */
+    public static void crypt(File from, File to, byte[] key, byte[] iv, final int rounds, int window, ForkJoinPool pool)
+        throws IOException
+    {
+        RandomAccessFile src = new RandomAccessFile(from, "r");
+        try {
+            RandomAccessFile dst = new RandomAccessFile(to, "rw");
+            try {
+                long size = src.length();
+                dst.setLength(size);
+                crypt(src.getChannel(), dst.getChannel(), size, key, iv, rounds, window, pool);
+            } finally {
+                dst.close();
+            }
+        } finally {
+            src.close();
+        }
+    }
+
+    /**
+     * Crypt the first length bytes of src into dst, window by window.
+     * The two may be the same channel.  dst must already be length long.
+     */
+    static void crypt(final FileChannel src, final FileChannel dst, final long length,
+                      byte[] key, byte[] iv, final int rounds, final int window, ForkJoinPool pool)
+        throws IOException
+    {
+        if (window <= 0 || window % ChaCha.OUTPUT_BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("window must be a positive multiple of the block size");
+
+        final int[] keyed = ChaChaCore.newState(key, iv, new byte[ChaCha.BLOCKCOUNTER_LENGTH]);
+        try {
+            if (pool == null) {
+                int[] state = new int[ChaChaCore.STATE_LENGTH];
+                int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+                for (long pos = 0; pos < length; pos += window)
+                    cryptWindow(src, dst, pos, (int) Math.min(window, length - pos), keyed, state, x, rounds);
+                ChaChaCore.destroy(state);
+                ChaChaCore.destroy(x);
+                return;
+            }
+
+            List<Callable<Void>> windows = new ArrayList<Callable<Void>>();
+            for (long pos = 0; pos < length; pos += window) {
+                final long start = pos;
+                final int  size  = (int) Math.min(window, length - pos);
+                windows.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        int[] state = new int[ChaChaCore.STATE_LENGTH];
+                        int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+                        cryptWindow(src, dst, start, size, keyed, state, x, rounds);
+                        ChaChaCore.destroy(state);
+                        ChaChaCore.destroy(x);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> f : pool.invokeAll(windows)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted crypting file", e);
+                }
+            }
+        } finally {
+            ChaChaCore.destroy(keyed);
+        }
+    }
+
+    /**
+     * Map one window and xor the keystream for it into place.
+     * The blockcounter for the window comes from its offset in the file.
+     */
+    private static void cryptWindow(FileChannel src, FileChannel dst, long pos, int size,
+                                    int[] keyed, int[] state, int[] x, final int rounds)
+        throws IOException
+    {
+        MappedByteBuffer out = dst.map(FileChannel.MapMode.READ_WRITE, pos, size);
+        MappedByteBuffer in  = (src == dst) ? out : src.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        out.order(ByteOrder.LITTLE_ENDIAN);          // ChaCha's order, saves byte swapping
+        in.order(ByteOrder.LITTLE_ENDIAN);
+
+        System.arraycopy(keyed, 0, state, 0, ChaChaCore.STATE_LENGTH);
+        ChaChaCore.setCounter(state, pos / ChaCha.OUTPUT_BLOCK_SIZE);
+        ChaChaCore.xor(state, x, in, 0, out, 0, size, rounds);
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    public static String selfTest()
+        throws IOException
+    {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        File a = File.createTempFile("chachafile", ".a");
+        File b = File.createTempFile("chachafile", ".b");
+        try {
+            for (int i = 0; i < 12; i++) {
+                byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+                byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+                int    len   = Support.exampleInt(0, 100000);
+                int    win   = ChaCha.OUTPUT_BLOCK_SIZE * Support.exampleInt(1, 300);
+                byte[] pt    = Support.exampleData(len);
+                ForkJoinPool p = (i % 2 == 0) ? pool : null;
+
+                byte[] expected = new byte[len];
+                ChaCha.crypto_stream_xor(expected, pt, len, nonce, key);
+
+                write(a, pt);
+                crypt(a, b, key, nonce, ChaCha.CHACHA20, win, p);
+                if (!X.ctEquals(expected, read(b)) || !X.ctEquals(pt, read(a)))
+                    throw new RuntimeException("copy crypt differs, len " + len + " window " + win);
+
+                cryptInPlace(a, key, nonce, ChaCha.CHACHA20, win, p);
+                if (!X.ctEquals(expected, read(a)))
+                    throw new RuntimeException("in place crypt differs, len " + len + " window " + win);
+            }
+        } finally {
+            pool.shutdown();
+            a.delete();
+            b.delete();
+        }
+        return "ChaChaFile good.";
+    }
+
+    private static void write(File f, byte[] data)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] read(File f)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,195 @@
+package cryptix.alg.chacha;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * ChaCha20 in the IETF layout of RFC 8439, as spoken by TLS and most
+ * newer protocols.  The last row of the state is a 32 bit blockcounter
+ * and a 96 bit nonce, where DJB's original (see {@link ChaCha}) has a
+ * 64 bit blockcounter and a 64 bit nonce:
+ * </p>
+ * <pre>
+ *    DJB:    bc0      bc1      nonce0   nonce1
+ *    IETF:   counter  nonce0   nonce1   nonce2
+ * </pre>
+ * <p>
+ * Everything else is the same, and this runs on the same
+ * {@link ChaChaCore} kernels.  The price of the bigger nonce is that
+ * one nonce covers at most 2^32 blocks (256GB), and the counter must
+ * not wrap into the nonce, so calls that would take it past 2^32 are
+ * refused.  The RFC only defines 20 rounds and 256 bit keys.
+ * </p><p>
+ * With the first 4 bytes of the nonce zero, this is the same stream
+ * as ChaCha20 with the last 8 bytes as the IV, for the first 2^32 blocks.
+ * </p>
+ *
+ * @see ChaChaIETFVectors
+ */
+public class ChaChaIETF
+{
+    private ChaChaIETF() { }
+
+    /**
+     * The IETF variant uses:
+     * <ul>
+     * <li>nonce length of 12 bytes</li>
+     * <li>blockcounter length of 4 bytes (32 bits, little-endian)</li>
+     * </ul>
+     * and the block size and KEY_LENGTH of ChaCha.
+     */
+    public static final int
+        NONCE_LENGTH        = 12,
+        COUNTER_LENGTH      = 4;
+
+    /**
+     * Easy call, from blockcounter 0.
+     *
+     * @param returnme is the output, has the input xor'd with the cipherstream
+     * @param xorme is the input, unchanged (unless it is returnme)
+     * @param xorlen
+     * @param nonce is NONCE_LENGTH (12 bytes)
+     * @param key is KEY_LENGTH (32 bytes)
+     */
+    public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] nonce, byte[] key)
+    {
+        crypto_stream_xor(returnme, xorme, xorlen, nonce, 0, key);
+    }
+
+    /**
+     * Full call, adds the initial blockcounter.
+     * RFC 8439 encryption starts at 1, as block 0 is kept for the
+     * Poly1305 key in the AEAD construction.
+     *
+     * @param returnme is the output, has the input xor'd with the cipherstream
+     * @param xorme is the input, unchanged (unless it is returnme)
+     * @param xorlen
+     * @param nonce is NONCE_LENGTH (12 bytes)
+     * @param counter is the first block, a 32 bit unsigned number
+     * @param key is KEY_LENGTH (32 bytes)
+     * @throws IllegalArgumentException if xorlen would run the counter past 2^32
+     */
+    public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] nonce, int counter, byte[] key)
+    {
+        checkCounter(counter, xorlen);
+
+        int[] state = new int[ChaChaCore.STATE_LENGTH];
+        int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+        ChaChaCore.initStateIETF(state, key, nonce, counter);
+
+        ChaChaCore.xor(state, x, xorme, 0, returnme, 0, xorlen, ChaCha.CHACHA20);
+
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
+    }
+
+    /**
+     * The blocks from counter onwards that len bytes need must all have
+     * a counter below 2^32:  past that, the kernels would carry into the
+     * first nonce word, and the stream would repeat another nonce's.
+     */
+    static void checkCounter(int counter, long len)
+    {
+        if (len < 0)
+            throw new IllegalArgumentException("negative length");
+        long blocks = (len + ChaCha.OUTPUT_BLOCK_SIZE - 1) / ChaCha.OUTPUT_BLOCK_SIZE;
+        if ((counter & 0xFFFFFFFFL) + blocks > (1L << 32))
+            throw new IllegalArgumentException("IETF blockcounter would wrap, " + len + " bytes from block " + (counter & 0xFFFFFFFFL));
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    static String testVector(String[][] vectors)
+    {
+        String s = "";
+        for (int i = 0; i < vectors.length; i++) {
+            s += "   " + vectors[i][0] + "\n";
+            testVector(vectors[i]);
+        }
+        return s;
+    }
+
+    static void testVector(String[] v)
+    {
+        byte[] key     = X.hex2data(v[1]);
+        byte[] nonce   = X.hex2data(v[2]);
+        int    counter = ChaChaCore.load(X.hex2data(v[3]), 0);
+        byte[] cipher  = X.hex2data(v[5]);
+        byte[] plain   = (v[4].length() > 0) ? X.hex2data(v[4]) : new byte[cipher.length];
+
+        byte[] got = new byte[cipher.length];
+        crypto_stream_xor(got, plain, plain.length, nonce, counter, key);
+        if (!X.ctEquals(cipher, got))
+            throw new RuntimeException("\n\n@@@@@@@@@@@@@@@@ not matched!\n" + v[0] +
+                                       "\n\twant: " + v[5] + "\n\tGOT:  " + X.data2hex(got) + "\n\n");
+
+        byte[] back = new byte[cipher.length];
+        crypto_stream_xor(back, got, got.length, nonce, counter, key);
+        if (!X.ctEquals(plain, back))
+            throw new RuntimeException(v[0] + " did not decrypt");
+    }
+
+    /**
+     * A zero first nonce word makes the IETF stream the DJB stream,
+     * so the two must agree, including the 4 block kernel.
+     */
+    static String testAgainstChaCha()
+    {
+        for (int i = 0; i < 20; i++) {
+            byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+            byte[] iv    = Support.exampleData(ChaCha.IV_LENGTH);
+            int    ctr   = Support.exampleInt(0, 1000);
+            int    len   = Support.exampleInt(0, 2000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] nonce = new byte[NONCE_LENGTH];
+            System.arraycopy(iv, 0, nonce, 4, ChaCha.IV_LENGTH);
+
+            byte[] djb  = new byte[len];
+            byte[] ietf = new byte[len];
+            ChaCha.crypto_stream_xor(djb, pt, len, iv, ChaCha.long2bc(ctr), key, ChaCha.CHACHA20);
+            crypto_stream_xor(ietf, pt, len, nonce, ctr, key);
+            if (!X.ctEquals(djb, ietf))
+                throw new RuntimeException("IETF differs from ChaCha, len " + len + " counter " + ctr);
+        }
+        return "Against ChaCha";
+    }
+
+    /** The last blocks before 2^32 are fine, one more is refused. */
+    static String testCounterLimit()
+    {
+        byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+        byte[] nonce = Support.exampleData(NONCE_LENGTH);
+        byte[] buf   = new byte[4 * ChaCha.OUTPUT_BLOCK_SIZE + 1];
+
+        crypto_stream_xor(buf, buf, 4 * ChaCha.OUTPUT_BLOCK_SIZE, nonce, -4, key);
+        crypto_stream_xor(buf, buf, 1, nonce, -1, key);
+        try {
+            crypto_stream_xor(buf, buf, buf.length, nonce, -4, key);
+        } catch (IllegalArgumentException good) {
+            return "Counter limit";
+        }
+        throw new RuntimeException("counter wrap not refused");
+    }
+
+    public static String selfTest()
+    {
+        String s = "ChaChaIETF: ";
+        s += testAgainstChaCha() + ". ";
+        s += testCounterLimit() + ". ";
+        s += "   Test vectors:\n";
+        s += testVector(ChaChaIETFVectors.RFC8439);
+        s += "ChaChaIETF good.";
+        return s;
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
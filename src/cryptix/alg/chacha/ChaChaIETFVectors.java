@@ -0,0 +1,65 @@
+package cryptix.alg.chacha;
+
+/**
+ * <p>
+ * Test vectors for the IETF variant of ChaCha20, {@link ChaChaIETF}.
+ * </p><p>
+ * Each vector is:  the Name, the key, the 12 byte nonce, the 32 bit
+ * blockcounter as 4 bytes in ChaCha little-endian order, the plaintext,
+ * and the ciphertext.  An empty plaintext stands for all zeros, so the
+ * ciphertext is the bare keystream.
+ * </p><p>
+ * From RFC 8439, ChaCha20 and Poly1305 for IETF Protocols:
+ * https://tools.ietf.org/html/rfc8439
+ * </p>
+ */
+public class ChaChaIETFVectors {
+
+    /**
+     * The block function and encryption examples of section 2,
+     * and the keystream vectors of appendix A.1.
+     */
+    public static final String[][] RFC8439 =
+    {
+        {
+            "RFC 8439 2.3.2 block function",
+            /* key = */ "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+            /* nonce */ "000000090000004a00000000",
+            /* ctr = */ "01000000",
+            /* plain */ "",
+            /* ciph. */ "10f1e7e4d13b5915500fdd1fa32071c4c7d1f4c733c068030422aa9ac3d46c4ed2826446079faa0914c2d705d98b02a2b5129cd1de164eb9cbd083e8a2503c4e",
+        },
+        {
+            "RFC 8439 2.4.2 sunscreen",
+            /* key = */ "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+            /* nonce */ "000000000000004a00000000",
+            /* ctr = */ "01000000",
+            /* plain */ "4c616469657320616e642047656e746c656d656e206f662074686520636c617373206f66202739393a204966204920636f756c64206f6666657220796f75206f6e6c79206f6e652074697020666f7220746865206675747572652c2073756e73637265656e20776f756c642062652069742e",
+            /* ciph. */ "6e2e359a2568f98041ba0728dd0d6981e97e7aec1d4360c20a27afccfd9fae0bf91b65c5524733ab8f593dabcd62b3571639d624e65152ab8f530c359f0861d807ca0dbf500d6a6156a38e088a22b65e52bc514d16ccf806818ce91ab77937365af90bbf74a35be6b40b8eedf2785e42874d",
+        },
+        {
+            "RFC 8439 A.1 #1 zero key, zero nonce, ctr 0",
+            /* key = */ "0000000000000000000000000000000000000000000000000000000000000000",
+            /* nonce */ "000000000000000000000000",
+            /* ctr = */ "00000000",
+            /* plain */ "",
+            /* ciph. */ "76b8e0ada0f13d90405d6ae55386bd28bdd219b8a08ded1aa836efcc8b770dc7da41597c5157488d7724e03fb8d84a376a43b8f41518a11cc387b669b2ee6586",
+        },
+        {
+            "RFC 8439 A.1 #2 zero key, zero nonce, ctr 1",
+            /* key = */ "0000000000000000000000000000000000000000000000000000000000000000",
+            /* nonce */ "000000000000000000000000",
+            /* ctr = */ "01000000",
+            /* plain */ "",
+            /* ciph. */ "9f07e7be5551387a98ba977c732d080dcb0f29a048e3656912c6533e32ee7aed29b721769ce64e43d57133b074d839d531ed1f28510afb45ace10a1f4b794d6f",
+        },
+        {
+            "RFC 8439 A.1 #3 key ..01, zero nonce, ctr 1",
+            /* key = */ "0000000000000000000000000000000000000000000000000000000000000001",
+            /* nonce */ "000000000000000000000000",
+            /* ctr = */ "01000000",
+            /* plain */ "",
+            /* ciph. */ "3aeb5224ecf849929b9d828db1ced4dd832025e8018b8160b82284f3c949aa5a8eca00bbb4a73bdad192b5c42f73f2fd4e273644c8b36125a64addeb006c13a0",
+        },
+    };
+}
@@ -0,0 +1,128 @@
+package cryptix.alg.chacha;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Decrypts (or encrypts) everything read from the underlying stream
+ * with ChaCha.  Bytes are crypted in place in the caller's array as
+ * they arrive, so memory use does not grow with the stream, and
+ * nothing is allocated per read.  The keystream runs on across reads,
+ * and skip() seeks the keystream rather than computing the skipped part.
+ * </p><p>
+ * The stream owns its {@link ChaChaEngine}, and close() wipes it.
+ * Mark and reset are not supported.
+ * </p>
+ *
+ * @see ChaChaOutputStream for the other direction
+ */
+public class ChaChaInputStream
+    extends FilterInputStream
+{
+    private final ChaChaEngine engine;
+    private final byte[]       single         = new byte[1];
+    private long               position       = 0;     // bytes of stream crypted so far
+    private boolean            closed         = false;
+
+    /**
+     * @param in supplies the ciphertext
+     * @param engine is initialised at the start of the stream, and is
+     *        closed with this stream
+     */
+    public ChaChaInputStream(InputStream in, ChaChaEngine engine)
+    {
+        super(in);
+        this.engine = engine;
+    }
+
+    /**
+     * CHACHA20 from blockcounter zero, as recommended.
+     * @param in supplies the ciphertext
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     */
+    public ChaChaInputStream(InputStream in, byte[] key, byte[] iv)
+    {
+        this(in, new ChaChaEngine());
+        engine.init(key, iv, 0);
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        int n = read(single, 0, 1);
+        return (n <= 0) ? -1 : (single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        ensureOpen();
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            engine.processBytes(b, off, n, b, off);
+            position += n;
+        }
+        return n;
+    }
+
+    /**
+     * Skips ciphertext, and seeks the keystream past it.
+     */
+    @Override
+    public long skip(long n)
+        throws IOException
+    {
+        ensureOpen();
+        long skipped = in.skip(n);
+        if (skipped > 0) {
+            position += skipped;
+            engine.seek(position);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit)
+    {
+    }
+
+    @Override
+    public void reset()
+        throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Closes the underlying stream and wipes the engine.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        engine.close();
+        single[0] = 0;
+        in.close();
+    }
+
+    private void ensureOpen()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("ChaChaInputStream closed");
+    }
+}
@@ -0,0 +1,270 @@
+package cryptix.alg.chacha;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * Keystream computed ahead of need, for many small messages on one
+ * (key, nonce) stream.  A background thread runs the ChaCha blocks into a
+ * bounded ring, and xor() only takes the next bytes of the ring and xors
+ * them in, so the caller pays about what a copy costs, not a block
+ * computation.
+ * </p><p>
+ * The messages share one stream:  each call to xor() takes the next len
+ * bytes of it, and returns the offset in the stream where they started.
+ * Send the offset with the message;  the other side decrypts with
+ * {@link ChaCha#crypto_stream_xor_at} or a {@link ChaChaEngine} seek(),
+ * or with its own pool if it sees the messages in the same order.
+ * Never start two pools, or a pool and anything else, on the same key
+ * and nonce for encryption.
+ * </p><p>
+ * xor() is thread-safe, and hands out disjoint parts of the stream.
+ * If the ring runs dry the caller waits for the worker, so a burst
+ * longer than the ring runs no faster than plain ChaCha.
+ * close() stops the worker and wipes the ring and state.
+ * </p>
+ *
+ * @see ChaChaEngine
+ */
+public class ChaChaKeystreamPool
+{
+    /** Default ring size, enough for some hundreds of small messages. */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final int           rounds;
+    private final int[]         state   = new int[ChaChaCore.STATE_LENGTH];
+    private final int[]         x       = new int[ChaChaCore.SCRATCH_LENGTH];
+    private final byte[]        ring;
+
+    private final ReentrantLock taker    = new ReentrantLock();   // one message at a time
+    private final ReentrantLock lock     = new ReentrantLock();   // the ring and counts
+    private final Condition     notEmpty = lock.newCondition();
+    private final Condition     notFull  = lock.newCondition();
+    private long                produced = 0;    // stream bytes written to the ring
+    private long                consumed = 0;    // stream bytes handed out
+    private boolean             closed   = false;
+
+    private final Thread        worker;
+
+    /** A pool for CHACHA20 from blockcounter 0, with the default ring. */
+    public ChaChaKeystreamPool(byte[] key, byte[] iv)
+    {
+        this(key, iv, ChaCha.CHACHA20, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     * @param capacity is the ring size in bytes, a positive multiple of 256
+     */
+    public ChaChaKeystreamPool(byte[] key, byte[] iv, final int rounds, int capacity)
+    {
+        if (rounds != ChaCha.CHACHA8 && rounds != ChaCha.CHACHA12 && rounds != ChaCha.CHACHA20)
+            throw new IllegalArgumentException("rounds must be one of CHACHA8, CHACHA12, CHACHA20");
+        if (capacity <= 0 || capacity % ChaChaCore.MULTI_BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("capacity must be a positive multiple of 256");
+
+        ChaChaCore.initState(state, key, iv, new byte[ChaCha.BLOCKCOUNTER_LENGTH]);
+        this.rounds = rounds;
+        this.ring   = new byte[capacity];
+
+        worker = new Thread(new Runnable() {
+            public void run() { fill(); }
+        }, "ChaChaKeystreamPool");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * XOR the next len bytes of the stream into in, to out.
+     * In and out may be the same array at the same offset.
+     *
+     * @return the offset in the stream of the first byte used
+     * @throws IllegalStateException if the pool is closed
+     */
+    public long xor(byte[] in, int inOff, int len, byte[] out, int outOff)
+    {
+        if (len < 0 || in.length - inOff < len || out.length - outOff < len)
+            throw new IllegalArgumentException("ChaChaKeystreamPool buffer params oflow");
+
+        // a message's bytes must be contiguous in the stream, so hold
+        // off other callers while this one waits on the worker
+        taker.lock();
+        lock.lock();
+        try {
+            final long start = consumed;
+            while (len > 0) {
+                while (produced == consumed && !closed)
+                    notEmpty.awaitUninterruptibly();
+                if (closed)
+                    throw new IllegalStateException("ChaChaKeystreamPool closed");
+
+                int r = (int) (consumed % ring.length);
+                int n = (int) Math.min(len, Math.min(produced - consumed, ring.length - r));
+                for (int i = 0; i < n; i++)
+                    out[outOff + i] = (byte) (in[inOff + i] ^ ring[r + i]);
+                consumed += n;
+                inOff += n;
+                outOff += n;
+                len -= n;
+                notFull.signal();
+            }
+            return start;
+        } finally {
+            lock.unlock();
+            taker.unlock();
+        }
+    }
+
+    /** @return the offset in the stream that the next xor() starts at */
+    public long position()
+    {
+        lock.lock();
+        try {
+            return consumed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop the worker and wipe the keystream and state. */
+    public void close()
+    {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
+        X.destroy(ring);
+    }
+
+    /**
+     * The worker:  whenever there is room for four blocks, compute them
+     * into the ring outside the lock (only the worker writes the free
+     * part of the ring), then publish them.
+     */
+    private void fill()
+    {
+        while (true) {
+            int w;
+            lock.lock();
+            try {
+                while (!closed && ring.length - (produced - consumed) < ChaChaCore.MULTI_BLOCK_SIZE)
+                    notFull.awaitUninterruptibly();
+                if (closed)
+                    return;
+                w = (int) (produced % ring.length);
+            } finally {
+                lock.unlock();
+            }
+
+            ChaChaCore.block4(state, x, rounds);
+            for (int i = 0; i < ChaChaCore.SCRATCH_LENGTH; i++, w += 4)
+                ChaChaCore.store(ring, w, x[i]);
+
+            lock.lock();
+            try {
+                produced += ChaChaCore.MULTI_BLOCK_SIZE;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * Messages through a small pool, so the ring wraps and runs dry,
+     * must be the stream ChaCha gives, and each must decrypt at its offset.
+     */
+    public static String selfTest()
+        throws InterruptedException
+    {
+        for (int round = 0; round < 4; round++) {
+            final byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+            final byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+            int capacity = ChaChaCore.MULTI_BLOCK_SIZE * Support.exampleInt(1, 4);
+            final ChaChaKeystreamPool pool = new ChaChaKeystreamPool(key, nonce, ChaCha.CHACHA20, capacity);
+            try {
+                // one thread:  the messages end to end are the plain stream
+                byte[] all = new byte[20000];
+                int off = 0;
+                while (off < all.length) {
+                    int len = Math.min(Support.exampleInt(0, 1000), all.length - off);
+                    if (pool.xor(all, off, len, all, off) != off)
+                        throw new RuntimeException("offset out of step at " + off);
+                    off += len;
+                }
+                byte[] want = new byte[all.length];
+                ChaCha.crypto_stream_xor(want, want, want.length, nonce, key);
+                if (!X.ctEquals(want, all))
+                    throw new RuntimeException("pool stream differs, capacity " + capacity);
+
+                // several threads:  every message decrypts at its own offset
+                final RuntimeException[] failed = new RuntimeException[1];
+                Thread[] threads = new Thread[3];
+                for (int t = 0; t < threads.length; t++) {
+                    threads[t] = new Thread() {
+                        public void run() {
+                            for (int i = 0; i < 200; i++) {
+                                byte[] m   = Support.exampleData(Support.exampleInt(40, 200));
+                                byte[] c   = new byte[m.length];
+                                long   at  = pool.xor(m, 0, m.length, c, 0);
+                                byte[] got = new byte[m.length];
+                                ChaCha.crypto_stream_xor_at(got, 0, c, 0, c.length, nonce, at, key, ChaCha.CHACHA20);
+                                if (!X.ctEquals(m, got))
+                                    failed[0] = new RuntimeException("message at " + at + " did not decrypt");
+                            }
+                        }
+                    };
+                    threads[t].start();
+                }
+                for (Thread t : threads)
+                    t.join();
+                if (failed[0] != null)
+                    throw failed[0];
+            } finally {
+                pool.close();
+            }
+
+            try {
+                pool.xor(new byte[1], 0, 1, new byte[1], 0);
+                throw new RuntimeException("closed pool still crypts");
+            } catch (IllegalStateException good) {
+            }
+        }
+        return "ChaChaKeystreamPool good.";
+    }
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,131 @@
+package cryptix.alg.chacha;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Encrypts (or decrypts) everything written, with ChaCha, before passing
+ * it on to the underlying stream.  The keystream runs on across writes,
+ * so the output is the same as one call to
+ * {@link ChaCha#crypto_stream_xor} over everything written, however it
+ * was cut up.  Memory use is one internal buffer, whatever the length of
+ * the stream, and nothing is allocated per write.
+ * </p><p>
+ * The stream owns its {@link ChaChaEngine}, and close() wipes it.
+ * Bytes are held in the buffer until it fills, or until flush()
+ * or close().
+ * </p>
+ *
+ * @see ChaChaInputStream for the other direction
+ */
+public class ChaChaOutputStream
+    extends FilterOutputStream
+{
+    /** Size of the internal buffer, a multiple of the block size. */
+    public static final int   BUFFER_SIZE     = 8192;
+
+    private final ChaChaEngine engine;
+    private final byte[]       buf            = new byte[BUFFER_SIZE];
+    private int                count          = 0;
+    private boolean            closed         = false;
+
+    /**
+     * @param out receives the ciphertext
+     * @param engine is initialised and positioned, and is closed with this stream
+     */
+    public ChaChaOutputStream(OutputStream out, ChaChaEngine engine)
+    {
+        super(out);
+        this.engine = engine;
+    }
+
+    /**
+     * CHACHA20 from blockcounter zero, as recommended.
+     * @param out receives the ciphertext
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param iv is IV_LENGTH (8 bytes)
+     */
+    public ChaChaOutputStream(OutputStream out, byte[] key, byte[] iv)
+    {
+        this(out, new ChaChaEngine());
+        engine.init(key, iv, 0);
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        ensureOpen();
+        buf[count] = (byte) b;
+        engine.processBytes(buf, count, 1, buf, count);
+        if (++count == buf.length)
+            flushBuffer();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        ensureOpen();
+        if (off < 0 || len < 0 || b.length - off < len)
+            throw new IndexOutOfBoundsException();
+
+        while (len > 0) {
+            int n = Math.min(len, buf.length - count);
+            engine.processBytes(b, off, n, buf, count);
+            count += n;
+            off   += n;
+            len   -= n;
+            if (count == buf.length)
+                flushBuffer();
+        }
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        ensureOpen();
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes out what is buffered, closes the underlying stream,
+     * and wipes the engine and the buffer.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            engine.close();
+            for (int i = 0; i < buf.length; i++)
+                buf[i] = 0;
+            out.close();
+        }
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensureOpen()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("ChaChaOutputStream closed");
+    }
+}
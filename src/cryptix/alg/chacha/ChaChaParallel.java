@@ -0,0 +1,129 @@
+package cryptix.alg.chacha;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * ChaCha over several cores.  Each block of the stream depends only on
+ * the key, the nonce and its own blockcounter, so a large input can be
+ * cut into pieces on block boundaries, and each piece crypted with the
+ * blockcounter moved on by the number of blocks before it.
+ * The result is byte for byte that of
+ * {@link ChaCha#crypto_stream_xor(byte[], byte[], int, byte[], byte[], byte[], int)}.
+ * </p><p>
+ * Pieces are split in half until they are no larger than the threshold,
+ * and run as tasks on a ForkJoinPool.  Inputs no larger than the
+ * threshold are crypted on the calling thread, without touching the pool.
+ * </p>
+ *
+ * @see CounterSplit which does the splitting
+ * @see ChaChaCore
+ */
+public class ChaChaParallel
+{
+    private ChaChaParallel() { }
+
+    /**
+     * Default size of the pieces handed to the pool.
+     * Much smaller and the task overhead shows, much larger and the
+     * last piece keeps one core busy while the others wait.
+     */
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+
+    /**
+     * Easy call on the common pool with the default threshold.
+     * @see #crypto_stream_xor(byte[], byte[], int, byte[], byte[], byte[], int, ForkJoinPool, int)
+     */
+    public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] iv, byte[] blockcounter, byte[] key, final int rounds)
+    {
+        crypto_stream_xor(returnme, xorme, xorlen, iv, blockcounter, key, rounds, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Full call, crypts 0 to xorlen of xorme into returnme on the pool.
+     *
+     * @param returnme is the output, has the input xor'd with the cipherstream
+     * @param xorme is the input, unchanged (unless it is returnme)
+     * @param xorlen
+     * @param iv
+     * @param blockcounter (in ChaCha small-endian layout)
+     * @param key is 16b/128bits or 32b/256bits (recommended)
+     * @param rounds is one of the CHACHA8, CHACHA12, CHACHA20 constants
+     * @param pool runs the pieces
+     * @param threshold is the largest piece in bytes, at least OUTPUT_BLOCK_SIZE
+     */
+    public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] iv, byte[] blockcounter, byte[] key, final int rounds,
+                                         ForkJoinPool pool, int threshold)
+    {
+        int[] state = ChaChaCore.newState(key, iv, blockcounter);
+        try {
+            CounterSplit.xor(blocks(state, rounds), returnme, xorme, xorlen, pool, threshold);
+        } finally {
+            ChaChaCore.destroy(state);
+        }
+    }
+
+    /**
+     * The keyed state as CounterSplit sees it.  The state is read only;
+     * each call copies it and moves the blockcounter on to its block.
+     */
+    static CounterSplit.Blocks blocks(final int[] state, final int rounds)
+    {
+        return new CounterSplit.Blocks() {
+            public void xor(long block, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len) {
+                int[] mine = state.clone();
+                int[] x    = new int[ChaChaCore.SCRATCH_LENGTH];
+                ChaChaCore.setCounter(mine, ChaChaCore.getCounter(mine) + block);
+                ChaChaCore.xor(mine, x, in, inPos, out, outPos, len, rounds);
+                ChaChaCore.destroy(mine);
+                ChaChaCore.destroy(x);
+            }
+        };
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * Parallel must equal serial, for odd lengths, small thresholds
+     * and blockcounters about to carry.
+     */
+    public static String selfTest()
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        final long[] counters = { 0, 0xFFFFFFF0L, -5 };
+        try {
+            for (int i = 0; i < 30; i++) {
+                byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+                byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+                byte[] bc    = ChaCha.long2bc(counters[i % counters.length]);
+                int    len   = Support.exampleInt(0, 100000);
+                int    thr   = Support.exampleInt(ChaCha.OUTPUT_BLOCK_SIZE, 20000);
+                byte[] pt    = Support.exampleData(len);
+
+                byte[] serial   = new byte[len];
+                byte[] parallel = new byte[len];
+                ChaCha.crypto_stream_xor(serial, pt, len, nonce, bc, key, ChaCha.CHACHA20);
+                crypto_stream_xor(parallel, pt, len, nonce, bc, key, ChaCha.CHACHA20, pool, thr);
+
+                if (!X.ctEquals(serial, parallel))
+                    throw new RuntimeException("parallel differs from serial, len " + len + " threshold " + thr);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return "ChaChaParallel good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
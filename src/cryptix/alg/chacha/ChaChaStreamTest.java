@@ -0,0 +1,93 @@
+package cryptix.alg.chacha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * Test to push random data through ChaChaOutputStream and back
+ * through ChaChaInputStream, in random sized pieces.
+ */
+public class ChaChaStreamTest
+{
+    /**
+     * This method will be called by outside testers, standard signature.
+     * @return a string with an informative diag on success
+     * @throws some exception on fail
+     */
+    public static String selfTest()
+        throws IOException
+    {
+        for (int i = 0; i < 50; i++) {
+            byte[] key   = Support.exampleData(ChaCha.KEY_LENGTH);
+            byte[] nonce = Support.exampleData(ChaCha.IV_LENGTH);
+            int    len   = Support.exampleInt(0, 3 * ChaChaOutputStream.BUFFER_SIZE);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] expected = new byte[len];
+            ChaCha.crypto_stream_xor(expected, pt, len, nonce, key);
+
+            /*
+             * Out, with a mix of single bytes and arrays.
+             */
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ChaChaOutputStream cos = new ChaChaOutputStream(baos, key, nonce);
+            for (int done = 0; done < len; ) {
+                if (i % 3 == 0) {
+                    cos.write(pt[done++]);
+                    continue;
+                }
+                int n = Math.min(Support.exampleInt(1, 5000), len - done);
+                cos.write(pt, done, n);
+                done += n;
+            }
+            cos.close();
+
+            byte[] ct = baos.toByteArray();
+            if (!X.ctEquals(expected, ct))
+                throw new RuntimeException("output stream differs, len " + len);
+
+            /*
+             * Back in, with a skip in the middle.
+             */
+            ChaChaInputStream cis = new ChaChaInputStream(new ByteArrayInputStream(ct), key, nonce);
+            byte[] got = new byte[len];
+            int skipAt = Support.exampleInt(0, len);
+            int done = 0;
+            while (done < len) {
+                if (done == skipAt) {
+                    long skipped = cis.skip(Support.exampleInt(0, 100));
+                    for (int j = 0; j < skipped; j++)
+                        got[done + j] = pt[done + j];
+                    done += (int) skipped;
+                    skipAt = -1;
+                    continue;
+                }
+                if (i % 3 == 1) {
+                    got[done++] = (byte) cis.read();
+                    continue;
+                }
+                int n = cis.read(got, done, Math.min(Support.exampleInt(1, 5000), len - done));
+                if (n < 0)
+                    throw new RuntimeException("early EOF at " + done + " of " + len);
+                done += n;
+            }
+            if (cis.read() != -1)
+                throw new RuntimeException("no EOF after " + len);
+            cis.close();
+
+            if (!X.ctEquals(pt, got))
+                throw new RuntimeException("input stream differs, len " + len);
+        }
+        return "ChaCha streams good.";
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,219 @@
+package cryptix.alg.chacha;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * The work of {@link ChaChaParallel} and {@link Salsa20Parallel}:  a
+ * counter-mode stream cut into pieces on block boundaries, each piece
+ * crypted on a ForkJoinPool with the blockcounter moved on by the number
+ * of blocks before it.  The cipher is seen only through {@link Blocks},
+ * so the splitting is written once for both.
+ * </p><p>
+ * The stream runs over a sequence of buffers, as in {@link BufferSequence},
+ * so its length is a long:  a file of many GB is mapped as several
+ * windows and crypted as one.  Arrays are wrapped, and go through the
+ * cores' array code.  A piece that crosses from one buffer to the next
+ * computes the block on the split twice, once for each side.
+ * </p><p>
+ * Inputs no larger than the threshold are crypted on the calling thread,
+ * without touching the pool.
+ * </p>
+ */
+final class CounterSplit
+{
+    private CounterSplit() { }
+
+    /** A keyed cipher that can start at any block of its stream. */
+    interface Blocks
+    {
+        /**
+         * XOR len bytes, at absolute positions, with the stream from the
+         * start of block, counted from the cipher's first block.
+         * Called from many threads at once;  must not change shared state.
+         */
+        void xor(long block, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len);
+    }
+
+    /** Crypt 0 to len of in into out, arrays as one buffer each. */
+    static void xor(Blocks blocks, byte[] out, byte[] in, int len, ForkJoinPool pool, int threshold)
+    {
+        if (threshold < ChaCha.OUTPUT_BLOCK_SIZE)
+            throw new IllegalArgumentException("threshold must be at least one block");
+        if (len < 0 || in.length < len || out.length < len)
+            throw new IllegalArgumentException("len longer than arrays");
+
+        ByteBuffer a = ByteBuffer.wrap(in, 0, len);
+        ByteBuffer b = (out == in) ? a : ByteBuffer.wrap(out, 0, len);
+        xor(blocks, new ByteBuffer[] { b }, new ByteBuffer[] { a }, pool, threshold);
+    }
+
+    /**
+     * Crypt all the remaining bytes of the in buffers, in order, into the
+     * out buffers, in order.  Positions advance by the amount processed,
+     * limits are not changed.  The same buffers may be given as in and
+     * out to crypt in place.
+     *
+     * @return the number of bytes processed
+     * @throws BufferOverflowException if out has less room than in has bytes
+     */
+    static long xor(Blocks blocks, ByteBuffer[] out, ByteBuffer[] in, ForkJoinPool pool, int threshold)
+    {
+        if (threshold < ChaCha.OUTPUT_BLOCK_SIZE)
+            throw new IllegalArgumentException("threshold must be at least one block");
+
+        Sequence src = new Sequence(in);
+        Sequence dst = new Sequence(out);
+        final long total = src.total;
+        if (dst.total < total)
+            throw new BufferOverflowException();
+
+        Piece all = new Piece(blocks, src, dst, 0, total, threshold);
+        if (total <= threshold)
+            all.compute();
+        else
+            pool.invoke(all);
+
+        src.advance(total);
+        dst.advance(total);
+        return total;
+    }
+
+    /**
+     * A snapshot of a sequence of buffers, as one run of bytes:
+     * where each buffer's remaining bytes start in the run.
+     */
+    private static final class Sequence
+    {
+        final ByteBuffer[] buffers;
+        final int[]        pos;       // position of each buffer at the start
+        final long[]       start;     // offset of each buffer in the run
+        final long         total;
+
+        Sequence(ByteBuffer[] buffers)
+        {
+            this.buffers = buffers;
+            pos   = new int[buffers.length];
+            start = new long[buffers.length];
+            long t = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                pos[i]   = buffers[i].position();
+                start[i] = t;
+                t += buffers[i].remaining();
+            }
+            total = t;
+        }
+
+        /** The buffer holding byte off of the run, off < total. */
+        int find(long off)
+        {
+            int lo = 0, hi = buffers.length - 1;
+            while (lo < hi) {                   // the last buffer starting at or before off
+                int mid = (lo + hi + 1) >>> 1;
+                if (start[mid] <= off)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return lo;                          // empty buffers start where the next does, so lo is not empty
+        }
+
+        int remaining(int i)
+        {
+            return buffers[i].limit() - pos[i];
+        }
+
+        /** Move the positions on by n bytes of the run. */
+        void advance(long n)
+        {
+            for (int i = 0; i < buffers.length && n > 0; i++) {
+                int k = (int) Math.min(n, remaining(i));
+                buffers[i].position(pos[i] + k);
+                n -= k;
+            }
+        }
+    }
+
+    /**
+     * The stream from byte off for len bytes.  Only leaves touch the
+     * buffers, and each leaf starts on a block boundary.
+     */
+    private static final class Piece
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Blocks   blocks;
+        private final Sequence src, dst;
+        private final long     off, len;
+        private final int      threshold;
+
+        Piece(Blocks blocks, Sequence src, Sequence dst, long off, long len, int threshold)
+        {
+            this.blocks    = blocks;
+            this.src       = src;
+            this.dst       = dst;
+            this.off       = off;
+            this.len       = len;
+            this.threshold = threshold;
+        }
+
+        protected void compute()
+        {
+            if (len <= threshold) {
+                leaf();
+                return;
+            }
+
+            long half = (len / 2 + ChaCha.OUTPUT_BLOCK_SIZE - 1) & ~(long) (ChaCha.OUTPUT_BLOCK_SIZE - 1);
+            invokeAll(new Piece(blocks, src, dst, off, half, threshold),
+                      new Piece(blocks, src, dst, off + half, len - half, threshold));
+        }
+
+        /** Walk both sequences over this piece, a run common to both at a time. */
+        private void leaf()
+        {
+            final int size = ChaCha.OUTPUT_BLOCK_SIZE;
+            byte[] block = null;                        // keystream of a block on a split
+            long at = off, end = off + len;
+            int i = src.find(at), j = dst.find(at);
+            while (at < end) {
+                while (at >= src.start[i] + src.remaining(i))
+                    i++;
+                while (at >= dst.start[j] + dst.remaining(j))
+                    j++;
+                ByteBuffer a = src.buffers[i], b = dst.buffers[j];
+                int inPos  = src.pos[i] + (int) (at - src.start[i]);
+                int outPos = dst.pos[j] + (int) (at - dst.start[j]);
+                int n = (int) Math.min(end - at,
+                                       Math.min(src.start[i] + src.remaining(i), dst.start[j] + dst.remaining(j)) - at);
+
+                int skip = (int) (at % size);
+                if (skip > 0) {                         // the rest of a block begun in the last run
+                    if (block == null)
+                        block = new byte[size];
+                    Arrays.fill(block, (byte) 0);       // xor'd with zeros, the keystream
+                    ByteBuffer ks = ByteBuffer.wrap(block);
+                    blocks.xor(at / size, ks, 0, ks, 0, size);
+                    int k = Math.min(n, size - skip);
+                    for (int m = 0; m < k; m++)
+                        b.put(outPos + m, (byte) (a.get(inPos + m) ^ block[skip + m]));
+                    inPos  += k;
+                    outPos += k;
+                    at     += k;
+                    n      -= k;
+                }
+                if (n > 0) {
+                    blocks.xor(at / size, a, inPos, b, outPos, n);
+                    at += n;
+                }
+            }
+            if (block != null)
+                Arrays.fill(block, (byte) 0);           // not X.destroy(), its PRNG is not for worker threads
+        }
+    }
+}
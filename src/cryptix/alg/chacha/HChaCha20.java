@@ -0,0 +1,61 @@
+package cryptix.alg.chacha;
+
+
+/**
+ * <p>
+ * HChaCha20 is the ChaCha20 rounds used as a key derivation,
+ * in support of XChaCha20, as HSalsa20 is for XSalsa20.
+ * </p><p>
+ * The 16 byte input fills the last row of the state where the
+ * blockcounter and nonce normally go, the 20 rounds are run,
+ * and the first and last rows are taken, without the feed-forward
+ * addition of the input, as the 32 byte output.
+ * </p>
+ *
+ * @see XChaCha20
+ * @see Hsalsa20
+ * @see (PDF) D. J. Bernstein. "Extending the Salsa20 nonce." URL: http://cr.yp.to/papers.html#xsalsa.
+ */
+public class HChaCha20
+{
+    private HChaCha20() { }
+
+    public static final int
+        INPUT_LENGTH        = 16,
+        OUTPUT_LENGTH       = 32;
+
+    /**
+     * @param outv receives OUTPUT_LENGTH (32) bytes
+     * @param inv is INPUT_LENGTH (16) bytes, usually the front of a nonce
+     * @param k is the 32 byte key
+     * @return 0
+     */
+    public static int crypto_core(byte[] outv, byte[] inv, byte[] k)
+    {
+        if (k.length != ChaCha.KEY_LENGTH)
+            throw new IllegalArgumentException("HChaCha20 key length must be 32 bytes");
+        if (inv.length < INPUT_LENGTH)
+            throw new IllegalArgumentException("HChaCha20 input must be 16 bytes");
+
+        int[] state = new int[ChaChaCore.STATE_LENGTH];
+        int[] x     = new int[ChaChaCore.STATE_LENGTH];
+        ChaChaCore.setKey(state, k);
+        for (int i = 0; i < 4; i++)
+            state[ChaChaCore.COUNTER_LO + i] = ChaChaCore.load(inv, 4*i);
+
+        // block() adds the input back in and steps the counter word,
+        // so keep the input to take it off again
+        int[] in = state.clone();
+        ChaChaCore.block(state, x, ChaCha.CHACHA20);
+
+        for (int i = 0; i < 4; i++) {
+            ChaChaCore.store(outv, 4*i,      x[i]      - in[i]);
+            ChaChaCore.store(outv, 16 + 4*i, x[12 + i] - in[12 + i]);
+        }
+
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
+        ChaChaCore.destroy(in);
+        return 0;
+    }
+}
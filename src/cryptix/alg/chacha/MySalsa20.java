@@ -31,7 +31,8 @@ import cryptix.Support;
  * 
  * </p><p>
  * It is recommended to use full sizes / rounds:  key of 32b/256bits and 20 rounds.
- * Indeed, that is the only mode supported in this Salsa implementation!
+ * Salsa20/12 and Salsa20/8 are there for streams that need speed more than
+ * margin;  only 32 byte keys are supported.
  * </p><p>
  * It is also recommended to use ChaCha rather than Salsa as it has a few tiny
  * improvements.
@@ -45,7 +46,7 @@ import cryptix.Support;
  * with any block number, an exception will be thrown if the block number exceeds
  * the max long length.
  * <li>Merge this more with ChaCha.
- * <li>Add support for rounds8/12 and keysize 128/16.
+ * <li>Add support for keysize 128/16.
  * </ul>
  * 
  * @author adalovelace
@@ -57,60 +58,49 @@ public class MySalsa20
 	 * TAU, SIGMA and other constants are taken from ChaCha
 	 */
 
-	public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] iv, long blockcounter , byte[] key){
-		int[] [] matrix     = new int[4][4];
-		int[] keys          = new int[8];
-		int[] block_counter = new int[2];
-		int[] noncez        = new int[2];
-
-		/*
-		 * Notes:
-		 * For all the silly people like me who get matrices confused,
-		 * the matrix is laid out this way:
-		 *         int [rows] [columns]
-		 */
-		for(int i = 0; i < 32; i += WORD){        // 8 times, 8 key words
-			keys[i/WORD] = bytes2littleendian(key[i], key[i+1], key[i+2], key[i+3]);	
-		}
-
-		for(int i = 0; i < 8; i += WORD){	       // twice, 2 nonce words
-			noncez[i/WORD] = bytes2littleendian(iv[i], iv[i+1], iv[i+2], iv[i+3]);
-		}
-
-		/*
-		 * Little endian -- low order int comes first.
-		 */
-		block_counter[0] = (int) (INT_M & blockcounter);
-		block_counter[1] = (int) (INT_M & (blockcounter >>> 32));
-
-		initialize_matrix(matrix, keys, noncez, block_counter);
-
-		crypt(matrix, returnme, xorme, xorlen );
+	/**
+	 * The argument to pass for the rounds, halved as for ChaCha:
+	 * Salsa20/20, Salsa20/12 and Salsa20/8.
+	 */
+	public static final int
+	    SALSA20             = Salsa20Core.SALSA20,
+	    SALSA12             = Salsa20Core.SALSA12,
+	    SALSA8              = Salsa20Core.SALSA8;
 
+	/**
+	 * Salsa20/20, the same stream as {@link Salsa20#crypto_stream_xor}.
+	 *
+	 * @param returnme is the output, gets the input xor'd with the cipherstream
+	 * @param xorme is the input
+	 * @param xorlen
+	 * @param iv is 8 bytes
+	 * @param blockcounter is the first block to use (not a byte count)
+	 * @param key is 32 bytes
+	 */
+	public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] iv, long blockcounter , byte[] key){
+		crypto_stream_xor(returnme, xorme, xorlen, iv, blockcounter, key, SALSA20);
 	}
 
-	
-	
-	private static void crypt(int[][] matrix0, byte[] returnme, byte[] xorme, int xorlen){
-		int num = (xorlen+63)/OUTPUT_BLOCK_SIZE;
-		for(int j = 0; j < num; j++ ){
-			int[][]matrix = salsa20(matrix0);
-			int start = j << 6;     // multiply by OUTPUT_BLOCK_SIZE
-			byte[] b = new byte[OUTPUT_BLOCK_SIZE];
-			int x = 0;
-			for(int i = start; i< (OUTPUT_BLOCK_SIZE/WORD)+start; i++){
-				byte[] temp = littleendian2bytes(matrix[(i/4)%4][i%4]);
-				b[x++] = temp[0];
-				b[x++] = temp[1];
-				b[x++] = temp[2];
-				b[x++] = temp[3];
-			}
-
-			for(int i = start; (i < OUTPUT_BLOCK_SIZE + start) && (i < xorlen); i += 1){
-				returnme[i] =  (byte) (xorme[i] ^ b[i%OUTPUT_BLOCK_SIZE]);
-			}
-			increment_bc(matrix0);
-		}
+	/**
+	 * Full call, with the rounds.  This runs on {@link Salsa20Core}, the
+	 * local-variable rounds of Salsa20.crypto_core() over a flat state,
+	 * and allocates nothing per block;  the matrix code below is kept
+	 * only to check the steps of the paper.
+	 *
+	 * @param rounds is one of the SALSA8, SALSA12, SALSA20 constants
+	 * @see #crypto_stream_xor(byte[], byte[], int, byte[], long, byte[])
+	 */
+	public static void crypto_stream_xor(byte[] returnme, byte[] xorme, int xorlen, byte[] iv, long blockcounter , byte[] key, final int rounds){
+		if (rounds != SALSA8 && rounds != SALSA12 && rounds != SALSA20)
+			throw new IllegalArgumentException("rounds must be one of SALSA8, SALSA12, SALSA20");
+		if (xorlen < 0 || xorme.length < xorlen || returnme.length < xorlen)
+			throw new IllegalArgumentException("xorlen longer than arrays");
+
+		int[] state = Salsa20Core.newState(key, iv, 0, blockcounter);
+		int[] x     = new int[Salsa20Core.STATE_LENGTH];
+		Salsa20Core.xor(state, x, xorme, 0, returnme, 0, xorlen, rounds);
+		Salsa20Core.destroy(state);
+		Salsa20Core.destroy(x);
 	}
 
 	//does 20 rounds of salsa, returning the matrix to 
@@ -124,62 +114,6 @@ public class MySalsa20
 		return matrix0;
 	}
 
-	//XXX: ask if these things need to be switched for little/big endian stuff???
-	private static void initialize_matrix(int[] [] matrix, int keys[], int[] nonce, int[] block_counter)
-	{
-		//		matrix[0] [0] = TAU[0];
-		//		matrix[0] [1] = keys[0];
-		//		matrix[0] [2] = keys[1];
-		//		matrix[0] [3] = keys[2];
-		//		matrix[1] [0] = keys[3];
-		//		matrix[1] [1] = TAU [1];
-		//		matrix[1] [2] = nounce[0];
-		//		matrix[1] [3] = nounce[1];
-		//		matrix[2] [0] = block_counter[0];
-		//		matrix[2] [1] = block_counter[1];
-		//		matrix[2] [2] = TAU[2];
-		//		matrix[2] [3] = keys[4];
-		//		matrix[3] [0] = keys[5];
-		//		matrix[3] [1] = keys[6];
-		//		matrix[3] [2] = keys[7];
-		//		matrix[3] [3] = TAU[3];
-
-		for(int i = 0; i < 4; i++){
-			matrix[i][i] = SIGMA_32[i];
-		}
-
-		matrix[1] [2] = nonce[0];
-		matrix[1] [3] = nonce[1];
-		matrix[2] [0] = block_counter[0];
-		matrix[2] [1] = block_counter[1];	
-
-		matrix[0] [1] = keys[0];
-		matrix[0] [2] = keys[1];
-		matrix[0] [3] = keys[2];
-		matrix[1] [0] = keys[3];
-
-		matrix[2] [3] = keys[4];
-		matrix[3] [0] = keys[5];
-		matrix[3] [1] = keys[6];
-		matrix[3] [2] = keys[7];
-	}
-
-	//this method increments nothing if all block positions are used.
-	//XXX: ask if I should do the first one first? or the second??
-	// XXX CHECK THE C CODE!!!!
-	//should it return null? or go back to the beginning?
-	//are we including negative numbers in this as well??
-	private static void increment_bc(int[][] matrix){
-		// XXX need to fix this to use UNsigned ints not SIGNed ints
-		if(matrix[2][0] < Integer.MAX_VALUE)
-			matrix[2][0] += 1;
-		else if(matrix[2][1] < Integer.MAX_VALUE) {
-			matrix[2][0]  = 0;
-			matrix[2][1] += 1;
-		}
-		return;
-	}
-
 	/**
 	 * Performs 1 round of Salsa.
 	 * It is currently rolled up into methods for each
@@ -289,6 +223,8 @@ public class MySalsa20
         s += "  Final.";
         
 		s += "  " + oroborousSalsa20();
+		s += "  " + testCore();
+		s += "  " + testRounds();
 		
 		return s;
 	}
@@ -396,15 +332,26 @@ public class MySalsa20
 		for(int i = 0; i <100; i++){
 			byte[] key    = Support.exampleData(32);
 			byte[] nounce = Support.exampleData(8);
-		    int bc        = 0;
+		    int bc        = (i % 4 == 0) ? 0 : Support.exampleInt(1, 300);   // carries a byte of the counter
 			byte[] pt     = Support.exampleData( Support.exampleInt(0, 1000) );
 			byte[] ct     = new byte[pt.length];
-			byte[] pt2    = new byte[pt.length];
 			MySalsa20.crypto_stream_xor(ct, pt, pt.length, nounce, bc, key);
-			Salsa20.crypto_stream_xor(pt2, ct, ct.length, nounce, bc, key);
-			//public static int crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] key)
-			if(!X.ctEquals(pt, pt2))
-				throw new RuntimeException("they're not equal!!!");
+
+			/*
+			 * Salsa20 has no blockcounter, it always starts at 0, so
+			 * block bc of its stream is at byte 64 * bc.
+			 */
+			int skip      = bc * OUTPUT_BLOCK_SIZE;
+			byte[] ct2    = new byte[skip + ct.length];
+			byte[] pt2    = new byte[skip + ct.length];
+			System.arraycopy(ct, 0, ct2, skip, ct.length);
+			Salsa20.crypto_stream_xor(pt2, ct2, ct2.length, nounce, 0, key);
+			if(!X.ctEquals(pt, 0, pt2, skip, pt.length))
+				throw new RuntimeException("they're not equal!!! bc " + bc);
+
+			Salsa20.crypto_stream_xor_ref(pt2, ct2, ct2.length, nounce, 0, key);
+			if(!X.ctEquals(pt, 0, pt2, skip, pt.length))
+				throw new RuntimeException("not equal to the reference!!! bc " + bc);
 		}
 		
 		return "oroborous!";
@@ -413,6 +360,54 @@ public class MySalsa20
 
 
 
+	/**
+	 * The core, given the paper's matrix as its flat state, must
+	 * produce the paper's final matrix.
+	 */
+	static String testCore(){
+		int[] state = new int[Salsa20Core.STATE_LENGTH];
+		int[] x     = new int[Salsa20Core.STATE_LENGTH];
+		for(int i = 0; i < Salsa20Core.STATE_LENGTH; i++)
+			state[i] = testmatrix0[i / 4][i % 4];
+		Salsa20Core.block(state, x, SALSA20);
+		for(int i = 0; i < Salsa20Core.STATE_LENGTH; i++)
+			if(x[i] != finaltestmatrix20[i / 4][i % 4])
+				throw new RuntimeException("Salsa20Core differs from paper at word " + i);
+		return "Core.";
+	}
+
+	/**
+	 * Salsa20/8 and /12 through the core must match the paper's
+	 * round-at-a-time matrix code run for 8 and 12 rounds.
+	 */
+	static String testRounds(){
+		final int[] rounds = { SALSA8, SALSA12, SALSA20 };
+		for(int i = 0; i < 30; i++){
+			final int r   = rounds[i % rounds.length];
+			byte[] key    = Support.exampleData(32);
+			byte[] nonce  = Support.exampleData(8);
+			long   bc     = (i % 2 == 0) ? Support.exampleInt(0, 1000) : 0xFFFFFFFFL;
+
+			int[] state = Salsa20Core.newState(key, nonce, 0, bc);
+			int[][] matrix0 = new int[4][4];
+			for(int j = 0; j < Salsa20Core.STATE_LENGTH; j++)
+				matrix0[j / 4][j % 4] = state[j];
+			int[][] matrix = matrix0;
+			for(int j = 0; j < 2 * r; j++)
+				matrix = round(matrix);
+			matrix = add4x4(matrix, matrix0);
+
+			byte[] want = new byte[OUTPUT_BLOCK_SIZE];
+			for(int j = 0; j < Salsa20Core.STATE_LENGTH; j++)
+				ChaChaCore.store(want, 4 * j, matrix[j / 4][j % 4]);
+			byte[] got = new byte[OUTPUT_BLOCK_SIZE];
+			MySalsa20.crypto_stream_xor(got, got, got.length, nonce, bc, key, r);
+			if(!X.ctEquals(want, got))
+				throw new RuntimeException("Salsa20/" + (2 * r) + " differs from the matrix rounds");
+		}
+		return "Rounds.";
+	}
+
     public static void main(String[] args){
         System.out.println(selfTest());
     }
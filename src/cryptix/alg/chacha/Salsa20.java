@@ -1,5 +1,8 @@
 package cryptix.alg.chacha;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 
 
 
@@ -158,59 +161,32 @@ public class Salsa20
 	}
 
 	/**
-	 * Unknown how this works, or even if it can work (see comment inside)
-	 * @param c
-	 * @param clen
-	 * @param n
-	 * @param noffset
-	 * @param k
-	 * @return
+	 * Write clen bytes of the raw stream (the cipherstream xor'd with
+	 * nothing) into c from offset 0, from blockcounter 0.
+	 * This used to write every full block over the start of c;  it now
+	 * runs through {@link Salsa20Core} as {@link Salsa20Engine} does.
+	 *
+	 * @param c is the output, at least clen long
+	 * @param clen is the number of bytes of stream wanted
+	 * @param n contains an 8 byte nonce/IV (but the array may be longer)
+	 * @param noffset is where the nonce/IV starts within n
+	 * @param k is 32 bytes long, only (other lengths unsupported)
+	 * @return 0, always
 	 */
 	static int crypto_stream(byte[] c, int clen, byte[] n, int noffset, byte[] k)
 	{
-		byte[] inv = new byte[16];
-		byte[] block = new byte[64];
-
-		int coffset = 0;
-
 		if (clen == 0)
 			return 0;
 
-		for (int i = 0; i < 8; ++i)
-			inv[i] = n[noffset + i];
-
-		for (int i = 8; i < 16; ++i)
-			inv[i] = 0;
+		int[] state = Salsa20Core.newState(k, n, noffset, 0);
+		int[] x     = new int[Salsa20Core.STATE_LENGTH];
 
-		while (clen >= 64)
-		{
-		    /*
-		     *  XXX huh?  why doesn't this advance?
-		     *  XXX coffset isn't used, c stays the same...
-		     */
-			Salsa20.crypto_core(c, inv, k, Xsalsa20.sigma);
-
-			int u = 1;
-
-			for (int i = 8; i < 16; ++i)
-			{
-				u += inv[i]&0xff;
-				inv[i] = (byte) u;
-				u >>>= 8;
-			}
-
-			clen -= 64;
-			coffset += 64;
-		}
-
-		if (clen != 0)
-		{			
-			Salsa20.crypto_core(block, inv, k, Xsalsa20.sigma);
-
-			for (int i = 0; i < clen; ++i)
-				c[coffset + i] = block[i];
-		}
+		for (int i = 0; i < clen; i++)
+			c[i] = 0;
+		Salsa20Core.xor(state, x, c, 0, c, 0, clen, Salsa20Core.SALSA20);
 
+		Salsa20Core.destroy(state);
+		Salsa20Core.destroy(x);
 		return 0;
 	}
 
@@ -222,6 +198,9 @@ public class Salsa20
 	 * Keys of size other than 32 bytes are not supported.  See comments about
 	 * how the shorter keys are expanded to 32 bytes, in order to craft short keys.
 	 * @see http://cr.yp.to/snuffle/keysizes.pdf 
+	 * <p>
+	 * Runs through {@link Salsa20Core}, as {@link MySalsa20} does, so the two give
+	 * the same stream at the same speed.
 	 * 
 	 * @param c is the output message after processing, must be same length as m
 	 * @param m is the input message, any length
@@ -231,9 +210,32 @@ public class Salsa20
 	 * @param key is 32 bytes long, only (other lengths unsupported)
 	 * @return 0, always
 	 */
+	public static int crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] key)
+	{
+		if (mlen < 0 || m.length < mlen || c.length < mlen)
+			throw new IllegalArgumentException("mlen longer than arrays");
+		if (mlen == 0)
+			return 0;
+
+		int[] state = Salsa20Core.newState(key, n, noffset, 0);
+		int[] x     = new int[Salsa20Core.STATE_LENGTH];
+		Salsa20Core.xor(state, x, m, 0, c, 0, mlen, Salsa20Core.SALSA20);
+
+		Salsa20Core.destroy(state);
+		Salsa20Core.destroy(x);
+		return 0;
+	}
+
+	/**
+	 * The original stream, a block at a time through crypto_core() with
+	 * the blockcounter kept as bytes.  Slow, and it allocates, but it is
+	 * independent of {@link Salsa20Core}, so it is kept to check the core
+	 * against.
+	 * @see #crypto_stream_xor(byte[], byte[], int, byte[], int, byte[])
+	 */
 	//XXX: wtf, this guy has an offset for the nounce... why doesn't he have a blockcounter????
 	//crazy needs to be changed.... gurrr!!!!
-	public static int crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] key)
+	static int crypto_stream_xor_ref(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] key)
 	{
 		byte[] inv   = new byte[16];
 		byte[] block = new byte[64];
@@ -282,6 +284,59 @@ public class Salsa20
 //XXX; why just 0!?!?!?!? what is going on here!
 		return 0;
 	}
+
+	/**
+	 * As above, for buffers, heap or direct:  the remaining() bytes of m
+	 * are xor'd with the stream into c, and both positions advance.
+	 * The two may be the same buffer, which crypts in place.
+	 *
+	 * @param c is the output, must have at least m.remaining() bytes remaining
+	 * @param m is the input
+	 * @param n contains an 8 byte nonce/IV (but the array may be longer)
+	 * @param noffset is where the nonce/IV starts within n
+	 * @param key is 32 bytes long, only (other lengths unsupported)
+	 * @throws BufferOverflowException if c has too little room
+	 */
+	public static void crypto_stream_xor(ByteBuffer c, ByteBuffer m, byte[] n, int noffset, byte[] key)
+	{
+		crypto_stream_xor(new ByteBuffer[] { c }, new ByteBuffer[] { m }, n, noffset, key);
+	}
+
+	/**
+	 * As above, for a sequence of buffers taken as one stream, for regions
+	 * over 2GB such as a large file or shared memory mapped as several
+	 * windows.  The remaining() bytes of the m buffers, in order, are xor'd
+	 * with the stream into the c buffers, in order, and every position is
+	 * advanced by what was used of it.  The sequences may be split in
+	 * different places, and may be the same buffers to crypt in place.
+	 * Nothing is staged through the heap.
+	 *
+	 * @param c are the outputs, with room for all of m between them
+	 * @param m are the inputs
+	 * @param n contains an 8 byte nonce/IV (but the array may be longer)
+	 * @param noffset is where the nonce/IV starts within n
+	 * @param key is 32 bytes long, only (other lengths unsupported)
+	 * @return the number of bytes crypted, which may be more than an int
+	 * @throws BufferOverflowException if c has too little room
+	 */
+	public static long crypto_stream_xor(ByteBuffer[] c, ByteBuffer[] m, byte[] n, int noffset, byte[] key)
+	{
+		final int[] state = Salsa20Core.newState(key, n, noffset, 0);
+		final int[] x     = new int[Salsa20Core.STATE_LENGTH];
+		try {
+			return BufferSequence.xor(c, m, new BufferSequence.Cipher() {
+				void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len) {
+					Salsa20Core.xor(state, x, in, inPos, out, outPos, len, Salsa20Core.SALSA20);
+				}
+				void keystream(byte[] block) {
+					Salsa20Core.keystream(state, x, block, 0, Salsa20Core.SALSA20);
+				}
+			});
+		} finally {
+			Salsa20Core.destroy(state);
+			Salsa20Core.destroy(x);
+		}
+	}
 	
 }
 
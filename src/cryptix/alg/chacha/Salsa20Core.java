@@ -0,0 +1,286 @@
+package cryptix.alg.chacha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * The Salsa20 block function over a flat <code>int[16]</code> state,
+ * as {@link ChaChaCore} is for ChaCha:  the rounds run over sixteen
+ * local ints, the key is laid in once, and nothing is allocated per
+ * block.  The stream is that of {@link Salsa20#crypto_stream_xor}.
+ * </p><p>
+ * The state is the Salsa20 matrix in its own order, with the constants
+ * on the diagonal:
+ * </p>
+ * <pre>
+ *     0  constant    1  key0        2  key1        3  key2
+ *     4  key3        5  constant    6  nonce0      7  nonce1
+ *     8  bc0         9  bc1        10  constant   11  key4
+ *    12  key5       13  key6       14  key7       15  constant
+ * </pre>
+ * <p>
+ * Words 8 and 9 hold the blockcounter as a 64 bit little-endian
+ * number, and every block produced advances it by one.
+ * Callers keep an <code>int[16]</code> of scratch for the keystream
+ * words, and reuse it.
+ * </p>
+ *
+ * @see Salsa20 for the NaCl calls
+ */
+public final class Salsa20Core
+{
+    private Salsa20Core() { }
+
+    /** Number of int words in a state (and in a keystream block). */
+    public static final int STATE_LENGTH = 16;
+
+    /** Double-round counts, as for ChaCha:  SALSA20 is 20 rounds. */
+    public static final int
+        SALSA20             = 10,
+        SALSA12             = 6,
+        SALSA8              = 4;
+
+    public static final int
+        KEY_LENGTH          = 32,
+        NONCE_LENGTH        = 8,
+        OUTPUT_BLOCK_SIZE   = 64;
+
+    static final int
+        NONCE_0             = 6,
+        NONCE_1             = 7,
+        COUNTER_LO          = 8,
+        COUNTER_HI          = 9;
+
+    /** "expand 32-byte k" as little-endian words. */
+    static final int[] SIGMA = { 0x61707865, 0x3320646e, 0x79622d32, 0x6b206574 };
+
+    /**
+     * Allocate and fill a new state.
+     * @see #initState(int[], byte[], byte[], int, long)
+     * @return a fresh int[16] state
+     */
+    public static int[] newState(byte[] key, byte[] n, int noffset, long blockcounter)
+    {
+        int[] state = new int[STATE_LENGTH];
+        initState(state, key, n, noffset, blockcounter);
+        return state;
+    }
+
+    /**
+     * Set up a state from the key, the nonce and the blockcounter.
+     *
+     * @param state is STATE_LENGTH ints, overwritten
+     * @param key is KEY_LENGTH (32 bytes)
+     * @param n holds an 8 byte nonce at noffset (the array may be longer)
+     * @param noffset is where the nonce starts within n
+     * @param blockcounter is the first block to use (not a byte count)
+     */
+    public static void initState(int[] state, byte[] key, byte[] n, int noffset, long blockcounter)
+    {
+        setKey(state, key);
+        setNonce(state, n, noffset);
+        setCounter(state, blockcounter);
+    }
+
+    /**
+     * Set the constants and key words of the state,
+     * leaving the blockcounter and nonce alone.
+     *
+     * @param state is STATE_LENGTH ints
+     * @param key is KEY_LENGTH (32 bytes)
+     */
+    public static void setKey(int[] state, byte[] key)
+    {
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException("Salsa20 key length must be 32 bytes");
+
+        state[0]  = SIGMA[0];
+        state[5]  = SIGMA[1];
+        state[10] = SIGMA[2];
+        state[15] = SIGMA[3];
+        for (int i = 0; i < 4; i++) {
+            state[1 + i]  = ChaChaCore.load(key, 4*i);
+            state[11 + i] = ChaChaCore.load(key, 16 + 4*i);
+        }
+    }
+
+    /** Set the nonce words from the 8 bytes at noffset in n. */
+    public static void setNonce(int[] state, byte[] n, int noffset)
+    {
+        if (noffset < 0 || n.length - noffset < NONCE_LENGTH)
+            throw new IllegalArgumentException("Salsa20 nonce must be 8 bytes");
+
+        state[NONCE_0] = ChaChaCore.load(n, noffset);
+        state[NONCE_1] = ChaChaCore.load(n, noffset + 4);
+    }
+
+    /** @return the 64 bit blockcounter held in words 8 and 9 */
+    public static long getCounter(int[] state)
+    {
+        return (state[COUNTER_HI] & 0xFFFFFFFFL) << 32 | (state[COUNTER_LO] & 0xFFFFFFFFL);
+    }
+
+    /** Set the 64 bit blockcounter held in words 8 and 9. */
+    public static void setCounter(int[] state, long blockcounter)
+    {
+        state[COUNTER_LO] = (int) blockcounter;
+        state[COUNTER_HI] = (int) (blockcounter >>> 32);
+    }
+
+    /** Zero a state or scratch array, for hygiene. */
+    public static void destroy(int[] state)
+    {
+        ChaChaCore.destroy(state);
+    }
+
+    /**
+     * Compute the keystream words for the block pointed to by state,
+     * and advance the blockcounter by one.
+     *
+     * @param state is the context, the blockcounter is incremented
+     * @param x receives the 16 keystream words
+     * @param rounds is one of the SALSA8, SALSA12, SALSA20 constants
+     */
+    public static void block(int[] state, int[] x, final int rounds)
+    {
+        int x0  = state[0],  x1  = state[1],  x2  = state[2],  x3  = state[3],
+            x4  = state[4],  x5  = state[5],  x6  = state[6],  x7  = state[7],
+            x8  = state[8],  x9  = state[9],  x10 = state[10], x11 = state[11],
+            x12 = state[12], x13 = state[13], x14 = state[14], x15 = state[15];
+
+        for (int i = rounds; i > 0; i--) {
+            // columns
+            x4  ^= Integer.rotateLeft(x0  + x12,  7);
+            x8  ^= Integer.rotateLeft(x4  + x0,   9);
+            x12 ^= Integer.rotateLeft(x8  + x4,  13);
+            x0  ^= Integer.rotateLeft(x12 + x8,  18);
+            x9  ^= Integer.rotateLeft(x5  + x1,   7);
+            x13 ^= Integer.rotateLeft(x9  + x5,   9);
+            x1  ^= Integer.rotateLeft(x13 + x9,  13);
+            x5  ^= Integer.rotateLeft(x1  + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6,   7);
+            x2  ^= Integer.rotateLeft(x14 + x10,  9);
+            x6  ^= Integer.rotateLeft(x2  + x14, 13);
+            x10 ^= Integer.rotateLeft(x6  + x2,  18);
+            x3  ^= Integer.rotateLeft(x15 + x11,  7);
+            x7  ^= Integer.rotateLeft(x3  + x15,  9);
+            x11 ^= Integer.rotateLeft(x7  + x3,  13);
+            x15 ^= Integer.rotateLeft(x11 + x7,  18);
+            // rows
+            x1  ^= Integer.rotateLeft(x0  + x3,   7);
+            x2  ^= Integer.rotateLeft(x1  + x0,   9);
+            x3  ^= Integer.rotateLeft(x2  + x1,  13);
+            x0  ^= Integer.rotateLeft(x3  + x2,  18);
+            x6  ^= Integer.rotateLeft(x5  + x4,   7);
+            x7  ^= Integer.rotateLeft(x6  + x5,   9);
+            x4  ^= Integer.rotateLeft(x7  + x6,  13);
+            x5  ^= Integer.rotateLeft(x4  + x7,  18);
+            x11 ^= Integer.rotateLeft(x10 + x9,   7);
+            x8  ^= Integer.rotateLeft(x11 + x10,  9);
+            x9  ^= Integer.rotateLeft(x8  + x11, 13);
+            x10 ^= Integer.rotateLeft(x9  + x8,  18);
+            x12 ^= Integer.rotateLeft(x15 + x14,  7);
+            x13 ^= Integer.rotateLeft(x12 + x15,  9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        x[0]  = x0  + state[0];   x[1]  = x1  + state[1];
+        x[2]  = x2  + state[2];   x[3]  = x3  + state[3];
+        x[4]  = x4  + state[4];   x[5]  = x5  + state[5];
+        x[6]  = x6  + state[6];   x[7]  = x7  + state[7];
+        x[8]  = x8  + state[8];   x[9]  = x9  + state[9];
+        x[10] = x10 + state[10];  x[11] = x11 + state[11];
+        x[12] = x12 + state[12];  x[13] = x13 + state[13];
+        x[14] = x14 + state[14];  x[15] = x15 + state[15];
+
+        if (++state[COUNTER_LO] == 0)
+            ++state[COUNTER_HI];
+    }
+
+    /**
+     * Write one block of keystream into out (assigned, not xor'd),
+     * and advance the blockcounter.
+     *
+     * @param state is the context
+     * @param x is scratch of STATE_LENGTH ints
+     * @param out receives OUTPUT_BLOCK_SIZE bytes at outOff
+     * @param rounds is one of the SALSA8, SALSA12, SALSA20 constants
+     */
+    public static void keystream(int[] state, int[] x, byte[] out, int outOff, final int rounds)
+    {
+        block(state, x, rounds);
+        for (int i = 0; i < STATE_LENGTH; i++, outOff += 4)
+            ChaChaCore.store(out, outOff, x[i]);
+    }
+
+    /**
+     * XOR len bytes of in with the keystream into out.
+     * Starts at the block boundary in state, and advances the blockcounter
+     * by one for every block touched, including a final partial block.
+     * In and out may be the same array at the same offset.
+     *
+     * @param state is the context
+     * @param x is scratch of STATE_LENGTH ints
+     * @param in is the input, read from inOff
+     * @param out is the output, written from outOff
+     * @param len is the number of bytes to process
+     * @param rounds is one of the SALSA8, SALSA12, SALSA20 constants
+     */
+    public static void xor(int[] state, int[] x, byte[] in, int inOff, byte[] out, int outOff, int len, final int rounds)
+    {
+        while (len >= OUTPUT_BLOCK_SIZE) {
+            block(state, x, rounds);
+            for (int i = 0; i < STATE_LENGTH; i++, inOff += 4, outOff += 4)
+                ChaChaCore.store(out, outOff, x[i] ^ ChaChaCore.load(in, inOff));
+            len -= OUTPUT_BLOCK_SIZE;
+        }
+        if (len > 0) {
+            block(state, x, rounds);
+            for (int i = 0; i < len; i++)
+                out[outOff + i] = (byte) (in[inOff + i] ^ (x[i >>> 2] >>> ((i & 3) << 3)));
+        }
+    }
+
+    /**
+     * XOR len bytes of in with the keystream into out, as above, for
+     * buffers, on the same terms as
+     * {@link ChaChaCore#xor(int[], int[], ByteBuffer, int, ByteBuffer, int, int, int)}:
+     * positions are absolute and left alone, and the caller checks the bounds.
+     *
+     * @param state is the context
+     * @param x is scratch of STATE_LENGTH ints
+     * @param in is the input, read from inPos
+     * @param out is the output, written from outPos
+     * @param len is the number of bytes to process
+     * @param rounds is one of the SALSA8, SALSA12, SALSA20 constants
+     */
+    public static void xor(int[] state, int[] x, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len, final int rounds)
+    {
+        if (in.hasArray() && out.hasArray()) {
+            xor(state, x, in.array(), in.arrayOffset() + inPos, out.array(), out.arrayOffset() + outPos, len, rounds);
+            return;
+        }
+
+        final boolean inSwap  = in.order()  == ByteOrder.BIG_ENDIAN;
+        final boolean outSwap = out.order() == ByteOrder.BIG_ENDIAN;
+
+        while (len >= OUTPUT_BLOCK_SIZE) {
+            block(state, x, rounds);
+            for (int i = 0; i < STATE_LENGTH; i++, inPos += 4, outPos += 4) {
+                int w = in.getInt(inPos);
+                if (inSwap)
+                    w = Integer.reverseBytes(w);
+                w ^= x[i];
+                out.putInt(outPos, outSwap ? Integer.reverseBytes(w) : w);
+            }
+            len -= OUTPUT_BLOCK_SIZE;
+        }
+        if (len > 0) {
+            block(state, x, rounds);
+            for (int i = 0; i < len; i++)
+                out.put(outPos + i, (byte) (in.get(inPos + i) ^ (x[i >>> 2] >>> ((i & 3) << 3))));
+        }
+    }
+}
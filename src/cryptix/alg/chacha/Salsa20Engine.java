@@ -0,0 +1,186 @@
+package cryptix.alg.chacha;
+
+import java.nio.ByteBuffer;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * A stateful Salsa20 cryptor, as {@link ChaChaEngine} is for ChaCha.
+ * Key it once with init(), then push any number of pieces through
+ * processBytes(), at any offsets in the caller's arrays.  Keystream
+ * left over at the end of one call is used up by the next, so a
+ * message fed in 13 byte pieces produces the same result as one call
+ * over the whole message.
+ * </p><p>
+ * The stream is the same as {@link Salsa20#crypto_stream_xor} given
+ * the same key and nonce, from blockcounter 0, so it interworks with
+ * NaCl's crypto_stream_salsa20.  The blockcounter counts 64 byte
+ * blocks, not bytes.
+ * </p><p>
+ * An engine is not thread safe.  Nothing is allocated after
+ * construction; close() wipes the key material.
+ * </p>
+ *
+ * @see ChaChaEngine for the buffering, which is shared
+ * @see Salsa20Core which does the work
+ */
+public class Salsa20Engine
+    extends StreamEngine
+{
+    /** An engine for SALSA20, as NaCl. */
+    public Salsa20Engine()               { this(Salsa20Core.SALSA20); }
+
+    /**
+     * @param rounds is one of the Salsa20Core SALSA8, SALSA12, SALSA20 constants
+     */
+    public Salsa20Engine(final int rounds)
+    {
+        super(checkRounds(rounds), Salsa20Core.STATE_LENGTH);
+    }
+
+    private static int checkRounds(final int rounds)
+    {
+        if (rounds != Salsa20Core.SALSA8 && rounds != Salsa20Core.SALSA12 && rounds != Salsa20Core.SALSA20)
+            throw new IllegalArgumentException("rounds must be one of SALSA8, SALSA12, SALSA20");
+        return rounds;
+    }
+
+    /**
+     * Key the engine and position it at the start of a block.
+     *
+     * @param key is 32 bytes
+     * @param nonce is 8 bytes
+     * @param blockcounter is the first block to use (not a byte count)
+     */
+    public void init(byte[] key, byte[] nonce, long blockcounter)
+    {
+        init(key, nonce, 0, blockcounter);
+    }
+
+    /**
+     * As above, with the nonce at noffset in a longer array,
+     * as the NaCl calls have it.
+     */
+    public void init(byte[] key, byte[] n, int noffset, long blockcounter)
+    {
+        Salsa20Core.setKey(state, key);
+        nonce(n, noffset, blockcounter);
+    }
+
+    /**
+     * Start a new stream under the current key, skipping the key setup.
+     * Any leftover keystream is dropped.
+     *
+     * @param n holds an 8 byte nonce at noffset
+     * @param noffset is where the nonce starts within n
+     * @param blockcounter is the first block to use (not a byte count)
+     */
+    public void setNonce(byte[] n, int noffset, long blockcounter)
+    {
+        checkKeyed();
+        nonce(n, noffset, blockcounter);
+    }
+
+    private void nonce(byte[] n, int noffset, long blockcounter)
+    {
+        Salsa20Core.setNonce(state, n, noffset);
+        Salsa20Core.setCounter(state, blockcounter);
+        started(blockcounter);
+    }
+
+    void xor(byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        Salsa20Core.xor(state, x, in, inOff, out, outOff, len, rounds);
+    }
+
+    void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len)
+    {
+        Salsa20Core.xor(state, x, in, inPos, out, outPos, len, rounds);
+    }
+
+    void keystream(byte[] block)
+    {
+        Salsa20Core.keystream(state, x, block, 0, rounds);
+    }
+
+    void setCounter(long blockcounter)
+    {
+        Salsa20Core.setCounter(state, blockcounter);
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * The buffering and seek() are tested once, in ChaChaEngine.  Here,
+     * what is Salsa20's own:  the nonce at an offset as NaCl has it, the
+     * blockcounter in words 8 and 9 across the carry into the high word,
+     * and each rounds constant, against a one-shot MySalsa20 call.
+     */
+    static String testSalsa()
+    {
+        for (int i = 0; i < 60; i++) {
+            final int rounds = (i % 3 == 0) ? Salsa20Core.SALSA8
+                             : (i % 3 == 1) ? Salsa20Core.SALSA12 : Salsa20Core.SALSA20;
+            Salsa20Engine engine = new Salsa20Engine(rounds);
+            byte[] key   = Support.exampleData(Salsa20Core.KEY_LENGTH);
+            byte[] n     = Support.exampleData(Salsa20Core.NONCE_LENGTH + 16);
+            long   bc    = (i % 2 == 0) ? 0 : 0xFFFFFFFFL - Support.exampleInt(0, 5);
+            int    len   = Support.exampleInt(0, 1000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] expected = new byte[len];
+            MySalsa20.crypto_stream_xor(expected, pt, len, X.copy(n, 16, Salsa20Core.NONCE_LENGTH), bc, key, rounds);
+
+            byte[] got = X.copy(pt, 0, len);
+            int split = Support.exampleInt(0, len);
+            engine.init(key, n, 16, bc);
+            engine.processBytes(got, 0, split, got, 0);
+            engine.processBytes(got, split, len - split, got, split);
+            engine.close();
+
+            if (!X.ctEquals(expected, got))
+                throw new RuntimeException("Salsa20Engine rounds " + rounds + " at bc " + bc + " differs on len " + len);
+        }
+        return "Salsa";
+    }
+
+    /**
+     * crypto_stream must be the stream over zeros at every length,
+     * past the first block too.
+     */
+    static String testStream()
+    {
+        for (int i = 0; i < 50; i++) {
+            byte[] key = Support.exampleData(Salsa20Core.KEY_LENGTH);
+            byte[] n   = Support.exampleData(24);
+            int    len = Support.exampleInt(0, 1000);
+
+            byte[] want = new byte[len];
+            Xsalsa20.crypto_stream_xor(want, new byte[len], len, n, key);
+            byte[] got = Support.exampleData(len + 5);      // junk to be overwritten
+            Xsalsa20.crypto_stream(got, len, n, key);
+            if (!X.ctEquals(want, 0, got, 0, len))
+                throw new RuntimeException("crypto_stream differs on len " + len);
+        }
+        return "Stream";
+    }
+
+    public static String selfTest()
+    {
+        String s = "Salsa20Engine: ";
+        s += testStream() + ". ";
+        s += testSalsa() + ". ";
+        return s + "good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,243 @@
+package cryptix.alg.chacha;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * Salsa20 and XSalsa20 over several cores, as {@link ChaChaParallel} is
+ * for ChaCha.  Each block of the stream depends only on the key, the
+ * nonce and its own blockcounter, so a large input is cut into pieces on
+ * block boundaries, and each piece crypted with the blockcounter moved on
+ * by the number of blocks before it.  The result is byte for byte that of
+ * {@link Salsa20#crypto_stream_xor(byte[], byte[], int, byte[], int, byte[])}
+ * and {@link Xsalsa20#crypto_stream_xor(byte[], byte[], long, byte[], byte[])}.
+ * </p><p>
+ * Pieces are split in half until they are no larger than the threshold,
+ * and run as tasks on a ForkJoinPool.  Inputs no larger than the
+ * threshold are crypted on the calling thread, without touching the pool.
+ * For inputs over 2GB, such as a large file mapped as several windows,
+ * the calls over a sequence of ByteBuffers take a stream of any length.
+ * </p>
+ *
+ * @see CounterSplit which does the splitting
+ * @see Salsa20Core
+ */
+public class Salsa20Parallel
+{
+    private Salsa20Parallel() { }
+
+    /** Default size of the pieces handed to the pool. */
+    public static final int DEFAULT_THRESHOLD = ChaChaParallel.DEFAULT_THRESHOLD;
+
+    /**
+     * Easy call on the common pool with the default threshold.
+     * @see #crypto_stream_xor(byte[], byte[], int, byte[], int, byte[], ForkJoinPool, int)
+     */
+    public static void crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] key)
+    {
+        crypto_stream_xor(c, m, mlen, n, noffset, key, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Full call, Salsa20 of 0 to mlen of m into c on the pool.
+     *
+     * @param c is the output, has m xor'd with the cipherstream
+     * @param m is the input, unchanged (unless it is c)
+     * @param mlen
+     * @param n contains an 8 byte nonce/IV (but the array may be longer)
+     * @param noffset is where the nonce/IV starts within n
+     * @param key is 32 bytes
+     * @param pool runs the pieces
+     * @param threshold is the largest piece in bytes, at least OUTPUT_BLOCK_SIZE
+     */
+    public static void crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] key,
+                                         ForkJoinPool pool, int threshold)
+    {
+        int[] state = Salsa20Core.newState(key, n, noffset, 0);
+        try {
+            CounterSplit.xor(blocks(state), c, m, mlen, pool, threshold);
+        } finally {
+            Salsa20Core.destroy(state);
+        }
+    }
+
+    /**
+     * Easy call over buffers on the common pool with the default threshold.
+     * @see #crypto_stream_xor(ByteBuffer[], ByteBuffer[], byte[], int, byte[], ForkJoinPool, int)
+     */
+    public static long crypto_stream_xor(ByteBuffer[] c, ByteBuffer[] m, byte[] n, int noffset, byte[] key)
+    {
+        return crypto_stream_xor(c, m, n, noffset, key, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Full call over a sequence of buffers, for streams longer than an
+     * array:  a file of many GB is mapped as several windows, and the
+     * windows crypted on the pool as one stream, the same stream as
+     * {@link Salsa20#crypto_stream_xor(ByteBuffer[], ByteBuffer[], byte[], int, byte[])}.
+     * Positions advance by the amount crypted.
+     *
+     * @param c are the outputs, with room for all of m between them
+     * @param m are the inputs (may be c, to crypt in place)
+     * @return the number of bytes crypted
+     * @throws BufferOverflowException if c has too little room
+     * @see #crypto_stream_xor(byte[], byte[], int, byte[], int, byte[], ForkJoinPool, int)
+     */
+    public static long crypto_stream_xor(ByteBuffer[] c, ByteBuffer[] m, byte[] n, int noffset, byte[] key,
+                                         ForkJoinPool pool, int threshold)
+    {
+        int[] state = Salsa20Core.newState(key, n, noffset, 0);
+        try {
+            return CounterSplit.xor(blocks(state), c, m, pool, threshold);
+        } finally {
+            Salsa20Core.destroy(state);
+        }
+    }
+
+    /**
+     * Easy call for XSalsa20 on the common pool with the default threshold.
+     * @see #crypto_stream_xsalsa20_xor(byte[], byte[], int, byte[], byte[], ForkJoinPool, int)
+     */
+    public static void crypto_stream_xsalsa20_xor(byte[] c, byte[] m, int mlen, byte[] n, byte[] k)
+    {
+        crypto_stream_xsalsa20_xor(c, m, mlen, n, k, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Full call, XSalsa20 of 0 to mlen of m into c on the pool.
+     * The subkey is derived once, on the calling thread.
+     *
+     * @param n is the 24 byte nonce
+     * @param k is the 32 byte key
+     * @see #crypto_stream_xor(byte[], byte[], int, byte[], int, byte[], ForkJoinPool, int)
+     */
+    public static void crypto_stream_xsalsa20_xor(byte[] c, byte[] m, int mlen, byte[] n, byte[] k,
+                                                  ForkJoinPool pool, int threshold)
+    {
+        int[] state = xsalsa20State(n, k);
+        try {
+            CounterSplit.xor(blocks(state), c, m, mlen, pool, threshold);
+        } finally {
+            Salsa20Core.destroy(state);
+        }
+    }
+
+    /**
+     * Easy call for XSalsa20 over buffers on the common pool with the default threshold.
+     * @see #crypto_stream_xsalsa20_xor(ByteBuffer[], ByteBuffer[], byte[], byte[], ForkJoinPool, int)
+     */
+    public static long crypto_stream_xsalsa20_xor(ByteBuffer[] c, ByteBuffer[] m, byte[] n, byte[] k)
+    {
+        return crypto_stream_xsalsa20_xor(c, m, n, k, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Full call for XSalsa20 over a sequence of buffers, the stream of
+     * {@link Xsalsa20#crypto_stream_xor(ByteBuffer[], ByteBuffer[], byte[])}.
+     *
+     * @param n is the 24 byte nonce
+     * @param k is the 32 byte key
+     * @return the number of bytes crypted
+     * @throws BufferOverflowException if c has too little room
+     * @see #crypto_stream_xor(ByteBuffer[], ByteBuffer[], byte[], int, byte[], ForkJoinPool, int)
+     */
+    public static long crypto_stream_xsalsa20_xor(ByteBuffer[] c, ByteBuffer[] m, byte[] n, byte[] k,
+                                                  ForkJoinPool pool, int threshold)
+    {
+        int[] state = xsalsa20State(n, k);
+        try {
+            return CounterSplit.xor(blocks(state), c, m, pool, threshold);
+        } finally {
+            Salsa20Core.destroy(state);
+        }
+    }
+
+    /** Salsa20 keyed with the XSalsa20 subkey, at block 0. */
+    private static int[] xsalsa20State(byte[] n, byte[] k)
+    {
+        if (n.length != Xsalsa20.NONCE_LENGTH)
+            throw new IllegalArgumentException("Xsalsa20 nonce length must be 24 bytes");
+
+        byte[] subkey = new byte[Xsalsa20.KEY_LENGTH];
+        Hsalsa20.crypto_core(subkey, n, k, Xsalsa20.sigma);
+        int[] state = Salsa20Core.newState(subkey, n, Xsalsa20.PREFIX_LENGTH, 0);
+        X.destroy(subkey);
+        return state;
+    }
+
+    /**
+     * The keyed state as CounterSplit sees it.  The state is read only;
+     * each call copies it and moves the blockcounter on to its block.
+     */
+    private static CounterSplit.Blocks blocks(final int[] state)
+    {
+        return new CounterSplit.Blocks() {
+            public void xor(long block, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len) {
+                int[] mine = state.clone();
+                int[] x    = new int[Salsa20Core.STATE_LENGTH];
+                Salsa20Core.setCounter(mine, Salsa20Core.getCounter(mine) + block);
+                Salsa20Core.xor(mine, x, in, inPos, out, outPos, len, Salsa20Core.SALSA20);
+                Salsa20Core.destroy(mine);
+                Salsa20Core.destroy(x);
+            }
+        };
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * Parallel must equal serial, for odd lengths and small thresholds,
+     * for both Salsa20 and XSalsa20, in arrays and in buffer sequences.
+     */
+    public static String selfTest()
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int i = 0; i < 30; i++) {
+                byte[] key = Support.exampleData(Salsa20Core.KEY_LENGTH);
+                byte[] n   = Support.exampleData(Xsalsa20.NONCE_LENGTH);
+                int    len = Support.exampleInt(0, 100000);
+                int    thr = Support.exampleInt(Salsa20Core.OUTPUT_BLOCK_SIZE, 20000);
+                byte[] pt  = Support.exampleData(len);
+
+                byte[] serial   = new byte[len];
+                byte[] parallel = new byte[len];
+                Salsa20.crypto_stream_xor(serial, pt, len, n, 5, key);
+                crypto_stream_xor(parallel, pt, len, n, 5, key, pool, thr);
+                if (!X.ctEquals(serial, parallel))
+                    throw new RuntimeException("Salsa20 parallel differs from serial, len " + len + " threshold " + thr);
+
+                Xsalsa20.crypto_stream_xor(serial, pt, len, n, key);
+                System.arraycopy(pt, 0, parallel, 0, len);
+                crypto_stream_xsalsa20_xor(parallel, parallel, len, n, key, pool, thr);
+                if (!X.ctEquals(serial, parallel))
+                    throw new RuntimeException("XSalsa20 parallel differs from serial, len " + len + " threshold " + thr);
+
+                ByteBuffer[] in  = ChaCha.split(pt);            // buffers split at odd places
+                ByteBuffer[] out = (i % 3 == 0) ? in : ChaCha.split(new byte[len]);
+                int[] starts = ChaCha.positions(out);
+                if (crypto_stream_xsalsa20_xor(out, in, n, key, pool, thr) != len
+                        || BufferSequence.remaining(in) != 0
+                        || !X.ctEquals(serial, ChaCha.join(out, starts)))
+                    throw new RuntimeException("XSalsa20 parallel buffers differ, len " + len + " threshold " + thr);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return "Salsa20Parallel good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -1,5 +1,8 @@
 package cryptix.alg.chacha;
 
+import java.nio.ByteBuffer;
+
+import cryptix.Support;
 import cryptix.X;
 
 
@@ -23,9 +26,62 @@ public class Salsa20Test
 	    String s = "";
 	    //s += selfTest(vectors128); // does not work for 128bit keys
         s += selfTest(Salsa20Vectors.vectors256);
+        s += "\n    " + testCore() + ", " + testByteBuffers();
 	    return s;
 	}
 
+    /**
+     * The int-local core must give the stream of crypto_stream_xor_ref,
+     * at any length, in one call or block by block.
+     */
+    static String testCore() {
+        for (int i = 0; i < 40; i++) {
+            byte[] key   = Support.exampleData(Salsa20Core.KEY_LENGTH);
+            byte[] n     = Support.exampleData(Salsa20Core.NONCE_LENGTH + 3);
+            int    len   = Support.exampleInt(0, 1000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] want = new byte[len];
+            Salsa20.crypto_stream_xor_ref(want, pt, len, n, 3, key);
+
+            int[] state = Salsa20Core.newState(key, n, 3, 0);
+            byte[] got  = new byte[len];
+            Salsa20Core.xor(state, new int[Salsa20Core.STATE_LENGTH], pt, 0, got, 0, len, Salsa20Core.SALSA20);
+            if (!X.ctEquals(want, got))
+                throw new RuntimeException("Salsa20Core differs, len " + len);
+            if (Salsa20Core.getCounter(state) != (len + 63) / 64)
+                throw new RuntimeException("Salsa20Core counter not advanced, len " + len);
+        }
+        return "Salsa20Core";
+    }
+
+    /**
+     * A stream over a sequence of buffers, split differently in and
+     * out, must be the stream over the one array, in and out of place.
+     */
+    static String testByteBuffers() {
+        for (int i = 0; i < 30; i++) {
+            byte[] key   = Support.exampleData(Salsa20Core.KEY_LENGTH);
+            byte[] n     = Support.exampleData(Salsa20Core.NONCE_LENGTH);
+            int    len   = Support.exampleInt(0, 2000);
+            byte[] pt    = Support.exampleData(len);
+
+            byte[] want = new byte[len];
+            Salsa20.crypto_stream_xor(want, pt, len, n, 0, key);
+
+            ByteBuffer[] in  = ChaCha.split(pt);
+            ByteBuffer[] out = ((i & 1) == 0) ? in : ChaCha.split(new byte[len]);
+            int[] starts = ChaCha.positions(out);
+            long done = Salsa20.crypto_stream_xor(out, in, n, 0, key);
+
+            if (done != len || BufferSequence.remaining(in) != 0)
+                throw new RuntimeException("buffer sequence not used up, len " + len);
+            if (!X.ctEquals(want, ChaCha.join(out, starts)))
+                throw new RuntimeException("Salsa20 buffer sequence differs, len " + len);
+        }
+        return "ByteBuffers";
+    }
+
     public static String selfTest(String[][] vectors) {
         
         int q = vectors.length;
@@ -0,0 +1,195 @@
+package cryptix.alg.chacha;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * The part of {@link ChaChaEngine} and {@link Salsa20Engine} that does
+ * not depend on the cipher:  the block of keystream left over from one
+ * processBytes() for the next, seek(), and the wiping.  A subclass keys
+ * the state and supplies its core's calls;  they are called once per
+ * processBytes(), and the core runs the blocks.
+ * </p><p>
+ * Both ciphers have a 16 word state and a 64 byte block, and both count
+ * blocks, not bytes.
+ * </p>
+ */
+abstract class StreamEngine
+{
+    static final int         BLOCK      = ChaCha.OUTPUT_BLOCK_SIZE;
+
+    final int                rounds;
+    final int[]              state      = new int[ChaChaCore.STATE_LENGTH];
+    final int[]              x;
+    private final byte[]     keystream  = new byte[BLOCK];
+    private int              used       = BLOCK;  // of keystream[]
+    private long             start      = 0;      // blockcounter at byte 0 of the stream
+    private boolean          keyed      = false;
+
+    /**
+     * @param rounds is the core's rounds constant, already checked
+     * @param scratch is the number of ints of scratch the core does best with
+     */
+    StreamEngine(final int rounds, int scratch)
+    {
+        this.rounds = rounds;
+        this.x      = new int[scratch];
+    }
+
+    /** XOR len bytes with the keystream from the state's blockcounter on. */
+    abstract void xor(byte[] in, int inOff, byte[] out, int outOff, int len);
+    abstract void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len);
+    /** One block of keystream into block[0..63], and advance. */
+    abstract void keystream(byte[] block);
+    abstract void setCounter(long blockcounter);
+
+    /** @return the rounds constant this engine was built with */
+    public int getRounds() { return rounds; }
+
+    /**
+     * The subclass has keyed the state and set its nonce and blockcounter;
+     * that blockcounter is byte 0 of the stream for seek().
+     */
+    final void started(long blockcounter)
+    {
+        start = blockcounter;
+        keyed = true;
+        discardKeystream();
+    }
+
+    final void checkKeyed()
+    {
+        if (!keyed)
+            throw new IllegalStateException(getClass().getSimpleName() + " not initialised");
+    }
+
+    /**
+     * Move to any byte of the stream, counting from the blockcounter given
+     * to init() or setNonce() as byte 0.  The blockcounter is worked out
+     * from the offset and, if the offset falls inside a block, that block
+     * is computed and the front of it skipped.  So reading a range from the
+     * middle of a large stream costs the range, not the offset.
+     *
+     * @param offset is a byte offset into the stream, 0 or more
+     */
+    public void seek(long offset)
+    {
+        checkKeyed();
+        if (offset < 0)
+            throw new IllegalArgumentException("negative stream offset");
+
+        discardKeystream();
+        setCounter(start + (offset / BLOCK));
+        int skip = (int) (offset % BLOCK);
+        if (skip > 0) {
+            keystream(keystream);
+            used = skip;
+        }
+    }
+
+    /**
+     * XOR len bytes of in with the stream into out, continuing from
+     * wherever the last call stopped.  In and out may be the same array
+     * (at the same offset, or with out before in).
+     *
+     * @param in is the input, read from inOff
+     * @param inOff is where to start in the input
+     * @param len is the number of bytes to process
+     * @param out is the output, written from outOff
+     * @param outOff is where to start in the output
+     */
+    public void processBytes(byte[] in, int inOff, int len, byte[] out, int outOff)
+    {
+        checkKeyed();
+        if (len < 0 || inOff < 0 || outOff < 0 || in.length - inOff < len || out.length - outOff < len)
+            throw new IllegalArgumentException(getClass().getSimpleName() + " buffer params oflow");
+
+        // first use up what is left of the last block
+        while (used < BLOCK && len > 0) {
+            out[outOff++] = (byte) (in[inOff++] ^ keystream[used++]);
+            len--;
+        }
+
+        // then whole blocks straight through the core
+        final int whole = len & ~(BLOCK - 1);
+        if (whole > 0) {
+            xor(in, inOff, out, outOff, whole);
+            inOff  += whole;
+            outOff += whole;
+            len    -= whole;
+        }
+
+        // and keep the rest of a final partial block for next time
+        if (len > 0) {
+            keystream(keystream);
+            for (used = 0; used < len; used++)
+                out[outOff + used] = (byte) (in[inOff + used] ^ keystream[used]);
+        }
+    }
+
+    /**
+     * XOR the remaining() bytes of in with the stream into out,
+     * continuing from wherever the last call stopped.  Buffers may be
+     * heap or direct, and may be the same buffer to crypt in place.
+     * Both positions advance by the amount processed.
+     *
+     * @param in is the input, from position to limit
+     * @param out is the output, must have at least in.remaining() bytes remaining
+     * @throws BufferOverflowException if out has too little room
+     */
+    public void processBytes(ByteBuffer in, ByteBuffer out)
+    {
+        checkKeyed();
+        int len = in.remaining();
+        if (out.remaining() < len)
+            throw new BufferOverflowException();
+
+        int inPos  = in.position();
+        int outPos = out.position();
+
+        while (used < BLOCK && len > 0) {
+            out.put(outPos++, (byte) (in.get(inPos++) ^ keystream[used++]));
+            len--;
+        }
+
+        final int whole = len & ~(BLOCK - 1);
+        if (whole > 0) {
+            xor(in, inPos, out, outPos, whole);
+            inPos  += whole;
+            outPos += whole;
+            len    -= whole;
+        }
+
+        if (len > 0) {
+            keystream(keystream);
+            for (used = 0; used < len; used++)
+                out.put(outPos + used, (byte) (in.get(inPos + used) ^ keystream[used]));
+            inPos  += len;
+            outPos += len;
+        }
+
+        in.position(inPos);
+        if (out != in)
+            out.position(outPos);
+    }
+
+    /**
+     * Wipe the key, the state and any leftover keystream.
+     * The engine needs init() before it can be used again.
+     */
+    public void close()
+    {
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
+        discardKeystream();
+        keyed = false;
+    }
+
+    private void discardKeystream()
+    {
+        for (int i = 0; i < keystream.length; i++)
+            keystream[i] = 0;
+        used = BLOCK;
+    }
+}
@@ -0,0 +1,232 @@
+package cryptix.alg.chacha;
+
+import cryptix.Support;
+import cryptix.X;
+
+
+/**
+ * <p>
+ * XChaCha20 is ChaCha20 with a 24 byte nonce, long enough to be picked
+ * at random for every message without worrying about collisions.
+ * It is built as XSalsa20 is from Salsa20:  HChaCha20 turns the key and
+ * the first 16 bytes of the nonce into a subkey, and ChaCha20 runs under
+ * the subkey with the last 8 bytes of the nonce as its IV, from
+ * blockcounter 0.  This is the layout of libsodium's
+ * crypto_stream_xchacha20.
+ * </p><p>
+ * The static calls derive the subkey every time.  An instance holds the
+ * key and remembers the subkey for the last nonce prefix it saw, so a run
+ * of messages whose nonces share the first 16 bytes (a fixed random prefix
+ * and a counter in the last 8, say) pays for HChaCha20 once.
+ * close() wipes the key and the subkey.
+ * </p>
+ *
+ * @see HChaCha20
+ * @see Xsalsa20
+ */
+public class XChaCha20
+{
+    public static final int
+        KEY_LENGTH          = 32,
+        NONCE_LENGTH        = 24;
+
+    public static int crypto_stream(byte[] c, int clen, byte[] n, byte[] k)
+    {
+        return crypto_stream_xor(c, new byte[clen], clen, n, k);
+    }
+
+    public static int crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, byte[] k)
+    {
+        checkNonce(n);
+        byte[] subkey = new byte[HChaCha20.OUTPUT_LENGTH];
+
+        HChaCha20.crypto_core(subkey, n, k);
+        crypt(c, m, mlen, n, subkey);
+        X.destroy(subkey);
+        return 0;
+    }
+
+    private final byte[] key;
+    private final byte[] prefix = new byte[HChaCha20.INPUT_LENGTH];
+    private final byte[] subkey = new byte[HChaCha20.OUTPUT_LENGTH];
+    private boolean      cached = false;
+    private boolean      closed = false;
+
+    /**
+     * @param k is the 32 byte key, copied
+     */
+    public XChaCha20(byte[] k)
+    {
+        if (k.length != KEY_LENGTH)
+            throw new IllegalArgumentException("XChaCha20 key length must be 32 bytes");
+        key = X.copy(k);
+    }
+
+    /**
+     * Crypt under this key, reusing the subkey if n starts with the same
+     * 16 bytes as the nonce of the previous call.
+     *
+     * @param c is the output, has m xor'd with the cipherstream
+     * @param m is the input, unchanged (unless it is c)
+     * @param mlen
+     * @param n is NONCE_LENGTH (24 bytes)
+     * @return 0
+     */
+    public int crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n)
+    {
+        if (closed)
+            throw new IllegalStateException("XChaCha20 closed");
+        checkNonce(n);
+        if (!cached || !X.ctEquals(prefix, 0, n, 0, HChaCha20.INPUT_LENGTH)) {
+            System.arraycopy(n, 0, prefix, 0, HChaCha20.INPUT_LENGTH);
+            HChaCha20.crypto_core(subkey, prefix, key);
+            cached = true;
+        }
+        crypt(c, m, mlen, n, subkey);
+        return 0;
+    }
+
+    /** Wipe the key and any cached subkey, the instance is no use after. */
+    public void close()
+    {
+        X.destroy(key);
+        X.destroy(prefix);
+        X.destroy(subkey);
+        cached = false;
+        closed = true;
+    }
+
+    private static void checkNonce(byte[] n)
+    {
+        if (n.length != NONCE_LENGTH)
+            throw new IllegalArgumentException("XChaCha20 nonce length must be 24 bytes");
+    }
+
+    /** ChaCha20 under the subkey, with the tail of the nonce as IV. */
+    private static void crypt(byte[] c, byte[] m, int mlen, byte[] n, byte[] subkey)
+    {
+        int[] state = new int[ChaChaCore.STATE_LENGTH];
+        int[] x     = new int[ChaChaCore.SCRATCH_LENGTH];
+        ChaChaCore.setKey(state, subkey);
+        state[ChaChaCore.NONCE_0] = ChaChaCore.load(n, 16);
+        state[ChaChaCore.NONCE_1] = ChaChaCore.load(n, 20);
+
+        ChaChaCore.xor(state, x, m, 0, c, 0, mlen, ChaCha.CHACHA20);
+
+        ChaChaCore.destroy(state);
+        ChaChaCore.destroy(x);
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * HChaCha20 test vector from draft-irtf-cfrg-xchacha, 2.2.1.
+     */
+    static String testHChaCha20()
+    {
+        byte[] key   = X.hex2data("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+        byte[] in    = X.hex2data("000000090000004a0000000031415927");
+        byte[] want  = X.hex2data("82413b4227b27bfed30e42508a877d73a0f9e4d58a74a853c12ec41326d3ecdc");
+        byte[] got   = new byte[HChaCha20.OUTPUT_LENGTH];
+        HChaCha20.crypto_core(got, in, key);
+        if (!X.ctEquals(want, got))
+            throw new RuntimeException("HChaCha20 vector: " + X.data2hex(got));
+        return "HChaCha20";
+    }
+
+    /**
+     * Keystream test vector from draft-irtf-cfrg-xchacha, A.3.2.
+     * The draft starts ChaCha20 at blockcounter 1, so the vector is
+     * the second and later blocks of our stream, which starts at 0.
+     */
+    static String testVector()
+    {
+        byte[] key  = X.hex2data("808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f");
+        byte[] n    = X.hex2data("404142434445464748494a4b4c4d4e4f5051525354555658");
+        byte[] pt   = ("The dhole (pronounced \"dole\") is also known as the Asiatic wild dog, red dog,"
+                     + " and whistling dog. It is about the size of a German shepherd but looks more like"
+                     + " a long-legged fox. This highly elusive and skilled jumper is classified with"
+                     + " wolves, coyotes, jackals, and foxes in the taxonomic family Canidae.").getBytes();
+        byte[] want = X.hex2data(
+              "7d0a2e6b7f7c65a236542630294e063b7ab9b555a5d5149aa21e4ae1e4fbce87"
+            + "ecc8e08a8b5e350abe622b2ffa617b202cfad72032a3037e76ffdcdc4376ee05"
+            + "3a190d7e46ca1de04144850381b9cb29f051915386b8a710b8ac4d027b8b050f"
+            + "7cba5854e028d564e453b8a968824173fc16488b8970cac828f11ae53cabd201"
+            + "12f87107df24ee6183d2274fe4c8b1485534ef2c5fbc1ec24bfc3663efaa08bc"
+            + "047d29d25043532db8391a8a3d776bf4372a6955827ccb0cdd4af403a7ce4c63"
+            + "d595c75a43e045f0cce1f29c8b93bd65afc5974922f214a40b7c402cdb91ae73"
+            + "c0b63615cdad0480680f16515a7ace9d39236464328a37743ffc28f4ddb324f4"
+            + "d0f5bbdc270c65b1749a6efff1fbaa09536175ccd29fb9e6057b307320d31683"
+            + "8a9c71f70b5b5907a66f7ea49aadc409");
+
+        byte[] m = new byte[ChaCha.OUTPUT_BLOCK_SIZE + pt.length];   // block 0 is skipped
+        System.arraycopy(pt, 0, m, ChaCha.OUTPUT_BLOCK_SIZE, pt.length);
+        byte[] c = new byte[m.length];
+        crypto_stream_xor(c, m, m.length, n, key);
+        if (!X.ctEquals(want, 0, c, ChaCha.OUTPUT_BLOCK_SIZE, want.length))
+            throw new RuntimeException("XChaCha20 A.3.2 vector: " + X.data2hex(X.copy(c, ChaCha.OUTPUT_BLOCK_SIZE, want.length)));
+        return "A.3.2";
+    }
+
+    /**
+     * The static call is HChaCha20 then ChaCha20, and the instance gives the
+     * same answers whether it hits its cache or not.
+     */
+    static String testConstruction()
+    {
+        byte[] key = Support.exampleData(KEY_LENGTH);
+        byte[] n   = Support.exampleData(NONCE_LENGTH);
+        XChaCha20 x = new XChaCha20(key);
+        try {
+            for (int i = 0; i < 20; i++) {
+                if (i % 4 == 0)
+                    n = Support.exampleData(NONCE_LENGTH);         // new prefix
+                else
+                    n[16 + i % 8]++;                                // same prefix
+
+                int    len = Support.exampleInt(0, 1000);
+                byte[] m   = Support.exampleData(len);
+
+                byte[] subkey = new byte[HChaCha20.OUTPUT_LENGTH];
+                HChaCha20.crypto_core(subkey, n, key);
+                byte[] want = new byte[len];
+                ChaCha.crypto_stream_xor(want, m, len, X.copy(n, 16, ChaCha.IV_LENGTH), subkey);
+
+                byte[] once   = new byte[len];
+                byte[] cached = new byte[len];
+                crypto_stream_xor(once, m, len, n, key);
+                x.crypto_stream_xor(cached, m, len, n);
+                if (!X.ctEquals(want, once) || !X.ctEquals(want, cached))
+                    throw new RuntimeException("XChaCha20 differs at " + i + ", len " + len);
+            }
+        } finally {
+            x.close();
+        }
+
+        try {                                               // the key is gone, not zero
+            x.crypto_stream_xor(new byte[64], new byte[64], 64, n);
+            throw new RuntimeException("closed XChaCha20 still crypts");
+        } catch (IllegalStateException expected) {
+        }
+        return "Construction";
+    }
+
+    public static String selfTest()
+    {
+        String s = "XChaCha20: ";
+        s += testHChaCha20() + ". ";
+        s += testVector() + ". ";
+        s += testConstruction() + ". ";
+        s += "XChaCha20 good.";
+        return s;
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
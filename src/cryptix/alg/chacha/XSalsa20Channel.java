@@ -0,0 +1,211 @@
+package cryptix.alg.chacha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * Crypts a channel into another with XSalsa20, a buffer at a time, for
+ * inputs of any size:  the memory used is the one buffer, whether the
+ * input is a kilobyte or an 80GB disk image.  The stream is the one
+ * {@link Xsalsa20#crypto_stream_xor} gives over the whole input, its
+ * 64 bit blockcounter running on from buffer to buffer, so the output
+ * can be decrypted by the same call or by any other XSalsa20.
+ * </p><p>
+ * Reads may come back any size;  keystream left over from one is used
+ * by the next (see {@link Salsa20Engine}).  The channels must be in
+ * blocking mode.  The buffer is reused for every read, and should be
+ * direct, so the bytes go from the channel through the cipher and back
+ * without a copy onto the heap.
+ * </p>
+ *
+ * @see ChaChaFile for mapped files under ChaCha
+ */
+public class XSalsa20Channel
+{
+    private XSalsa20Channel() { }
+
+    /** Default buffer size, a multiple of the block size. */
+    public static final int DEFAULT_BUFFER = 64 * 1024;
+
+    /**
+     * Easy call, from one file to another, with a fresh direct buffer.
+     * @param from is read and left alone
+     * @param to is created or truncated, and gets the crypted from
+     * @param n is the 24 byte nonce
+     * @param k is the 32 byte key
+     * @return the number of bytes crypted
+     */
+    public static long crypt(File from, File to, byte[] n, byte[] k)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                return crypt(in.getChannel(), out.getChannel(), n, k, ByteBuffer.allocateDirect(DEFAULT_BUFFER));
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Easy call, with a fresh direct buffer of DEFAULT_BUFFER.
+     * @see #crypt(ReadableByteChannel, WritableByteChannel, byte[], byte[], ByteBuffer)
+     */
+    public static long crypt(ReadableByteChannel in, WritableByteChannel out, byte[] n, byte[] k)
+        throws IOException
+    {
+        return crypt(in, out, n, k, ByteBuffer.allocateDirect(DEFAULT_BUFFER));
+    }
+
+    /**
+     * Full call, reads in to its end, and writes the crypted bytes to out.
+     * Neither channel is closed.
+     *
+     * @param in is read until end of stream
+     * @param out gets as many bytes as in gave
+     * @param n is the 24 byte nonce
+     * @param k is the 32 byte key
+     * @param buffer is used for every read and write, its contents and
+     *        position are lost, and it is zeroed when done
+     * @return the number of bytes crypted
+     */
+    public static long crypt(ReadableByteChannel in, WritableByteChannel out, byte[] n, byte[] k, ByteBuffer buffer)
+        throws IOException
+    {
+        if (n.length != Xsalsa20.NONCE_LENGTH)
+            throw new IllegalArgumentException("Xsalsa20 nonce length must be 24 bytes");
+        if (buffer.capacity() == 0 || buffer.isReadOnly())
+            throw new IllegalArgumentException("buffer must be writable and not empty");
+
+        Salsa20Engine engine = new Salsa20Engine();
+        byte[] subkey = new byte[Xsalsa20.KEY_LENGTH];
+        Hsalsa20.crypto_core(subkey, n, k, Xsalsa20.sigma);
+        engine.init(subkey, n, Xsalsa20.PREFIX_LENGTH, 0);
+        X.destroy(subkey);
+
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);          // Salsa20's order, saves byte swapping
+        long total = 0;
+        try {
+            while (true) {
+                buffer.clear();
+                int got = in.read(buffer);
+                if (got < 0)
+                    break;
+                buffer.flip();
+                engine.processBytes(buffer, buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                total += got;
+            }
+        } finally {
+            engine.close();
+            buffer.clear();
+            while (buffer.hasRemaining())
+                buffer.put((byte) 0);
+            buffer.clear();
+            buffer.order(order);
+        }
+        return total;
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /** A channel over an array that hands out reads of random sizes. */
+    private static final class Dribble
+        implements ReadableByteChannel
+    {
+        private final byte[] data;
+        private int          pos = 0;
+
+        Dribble(byte[] data)        { this.data = data; }
+        public boolean isOpen()     { return true; }
+        public void close()         { }
+
+        public int read(ByteBuffer dst)
+        {
+            if (pos == data.length)
+                return -1;
+            int n = Math.min(Math.min(dst.remaining(), data.length - pos), Support.exampleInt(1, 500));
+            dst.put(data, pos, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * Channels with ragged reads, small heap and direct buffers, and
+     * files, must all give the stream of Xsalsa20 over the whole input.
+     */
+    public static String selfTest()
+        throws IOException
+    {
+        File a = File.createTempFile("xsalsa20channel", ".a");
+        File b = File.createTempFile("xsalsa20channel", ".b");
+        try {
+            for (int i = 0; i < 20; i++) {
+                byte[] k   = Support.exampleData(Xsalsa20.KEY_LENGTH);
+                byte[] n   = Support.exampleData(Xsalsa20.NONCE_LENGTH);
+                int    len = Support.exampleInt(0, 100000);
+                byte[] pt  = Support.exampleData(len);
+
+                byte[] want = new byte[len];
+                Xsalsa20.crypto_stream_xor(want, pt, len, n, k);
+
+                int size = Support.exampleInt(1, 3000);
+                ByteBuffer buffer = (i % 2 == 0) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                ReadableByteChannel in = (i % 3 == 0) ? Channels.newChannel(new ByteArrayInputStream(pt)) : new Dribble(pt);
+                long done = crypt(in, Channels.newChannel(sink), n, k, buffer);
+                if (done != len || !X.ctEquals(want, sink.toByteArray()))
+                    throw new RuntimeException("channel crypt differs, len " + len + " buffer " + size);
+
+                FileOutputStream fa = new FileOutputStream(a);
+                fa.write(pt);
+                fa.close();
+                crypt(a, b, n, k);
+                byte[] got = new byte[len];
+                FileInputStream fb = new FileInputStream(b);
+                int off = 0;
+                for (int r; off < len && (r = fb.read(got, off, len - off)) > 0; )
+                    off += r;
+                boolean tooLong = fb.read() >= 0;
+                fb.close();
+                if (off != len || tooLong || !X.ctEquals(want, got))
+                    throw new RuntimeException("file crypt differs, len " + len);
+            }
+        } finally {
+            a.delete();
+            b.delete();
+        }
+        return "XSalsa20Channel good.";
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -0,0 +1,331 @@
+package cryptix.alg.chacha;
+
+import cryptix.Support;
+import cryptix.X;
+import cryptix.alg.poly1305.Poly1305;
+
+/**
+ * <p>
+ * NaCl's crypto_secretbox, XSalsa20 for secrecy and Poly1305 over the
+ * ciphertext for integrity, interoperable with NaCl and libsodium.
+ * The first 32 bytes of the XSalsa20 keystream are the one-time Poly1305
+ * key (r then s), and the message is crypted from byte 32 of the stream.
+ * </p><p>
+ * There are two layouts.  The NaCl calls crypto_secretbox() and
+ * crypto_secretbox_open() take the padded arrays of the C API:  the
+ * message starts with ZEROBYTES (32) zeros, and the box with
+ * BOXZEROBYTES (16) zeros then the tag.  The secretbox() calls take the
+ * plain message and write the tag then the ciphertext, as libsodium's
+ * crypto_secretbox_easy() does.
+ * </p><p>
+ * secretbox() runs in a single pass:  the message is crypted a CHUNK
+ * at a time and each chunk of ciphertext is MAC'd while it is still in
+ * cache.  Opening checks the tag over the ciphertext, in constant time,
+ * before it decrypts a byte;  a failed open leaves the output untouched.
+ * </p>
+ *
+ * @see Xsalsa20
+ * @see Poly1305
+ * @see ChaCha20Poly1305 for the IETF construction over ChaCha
+ */
+public class XSalsa20Poly1305
+{
+    private XSalsa20Poly1305() { }
+
+    public static final int
+        KEY_LENGTH          = Xsalsa20.KEY_LENGTH,
+        NONCE_LENGTH        = Xsalsa20.NONCE_LENGTH,
+        TAG_LENGTH          = Poly1305.MAC_LENGTH,
+        ZEROBYTES           = 32,
+        BOXZEROBYTES        = 16;
+
+    /** Bytes crypted and then MAC'd at a time, a multiple of both block sizes. */
+    static final int CHUNK  = ChaCha20Poly1305.CHUNK;
+
+    /**
+     * NaCl call.  m holds ZEROBYTES zeros then the message;  c receives
+     * BOXZEROBYTES zeros, then the tag, then the ciphertext.
+     * c and m may be the same array.
+     *
+     * @param c is the box, at least mlen bytes
+     * @param m is the padded message
+     * @param mlen includes the ZEROBYTES of padding
+     * @param n is NONCE_LENGTH (24 bytes)
+     * @param k is KEY_LENGTH (32 bytes)
+     * @return 0, or -1 if mlen is shorter than the padding
+     */
+    public static int crypto_secretbox(byte[] c, byte[] m, long mlen, byte[] n, byte[] k)
+    {
+        if (mlen < ZEROBYTES)
+            return -1;
+        if (mlen > m.length || mlen > c.length)
+            throw new IllegalArgumentException("XSalsa20Poly1305 mlen outside the arrays");
+
+        secretbox(c, BOXZEROBYTES, m, ZEROBYTES, (int) mlen - ZEROBYTES, n, k);
+        for (int i = 0; i < BOXZEROBYTES; i++)
+            c[i] = 0;
+        return 0;
+    }
+
+    /**
+     * NaCl call.  c holds BOXZEROBYTES (ignored), then the tag, then the
+     * ciphertext;  m receives ZEROBYTES zeros then the message, only if
+     * the tag verifies.  c and m may be the same array.
+     *
+     * @param m is the padded message out, at least clen bytes
+     * @param c is the padded box
+     * @param clen includes the BOXZEROBYTES and the tag
+     * @param n is NONCE_LENGTH (24 bytes)
+     * @param k is KEY_LENGTH (32 bytes)
+     * @return 0, or -1 if the box is too short or does not verify
+     */
+    public static int crypto_secretbox_open(byte[] m, byte[] c, long clen, byte[] n, byte[] k)
+    {
+        if (clen < ZEROBYTES)
+            return -1;
+        if (clen > m.length || clen > c.length)
+            throw new IllegalArgumentException("XSalsa20Poly1305 clen outside the arrays");
+
+        if (!secretbox_open(m, ZEROBYTES, c, BOXZEROBYTES, (int) clen - BOXZEROBYTES, n, k))
+            return -1;
+        for (int i = 0; i < ZEROBYTES; i++)
+            m[i] = 0;
+        return 0;
+    }
+
+    /**
+     * Easy call.
+     * @return the tag then the ciphertext, m.length + TAG_LENGTH bytes
+     */
+    public static byte[] secretbox(byte[] m, byte[] n, byte[] k)
+    {
+        byte[] c = new byte[TAG_LENGTH + m.length];
+        secretbox(c, 0, m, 0, m.length, n, k);
+        return c;
+    }
+
+    /**
+     * Easy call.
+     * @param c is the tag then the ciphertext
+     * @return the plaintext, or null if the tag does not verify
+     */
+    public static byte[] secretbox_open(byte[] c, byte[] n, byte[] k)
+    {
+        if (c.length < TAG_LENGTH)
+            return null;
+        byte[] m = new byte[c.length - TAG_LENGTH];
+        return secretbox_open(m, 0, c, 0, c.length, n, k) ? m : null;
+    }
+
+    /**
+     * Encrypt and authenticate.  The tag is written last, so m may be
+     * in the same array as long as it starts at or after cOff + TAG_LENGTH
+     * (as in the NaCl layout, where it is 16 bytes after).
+     *
+     * @param c receives the TAG_LENGTH tag then mlen bytes of ciphertext, from cOff
+     * @param m is the plaintext, read from mOff
+     * @param n is NONCE_LENGTH (24 bytes), never to be reused with the key
+     * @param k is KEY_LENGTH (32 bytes)
+     */
+    public static void secretbox(byte[] c, int cOff, byte[] m, int mOff, int mlen, byte[] n, byte[] k)
+    {
+        if (mlen < 0 || cOff < 0 || mOff < 0 || m.length - mOff < mlen || c.length - cOff - TAG_LENGTH < mlen)
+            throw new IllegalArgumentException("XSalsa20Poly1305 buffer params oflow");
+
+        int[]  state  = new int[Salsa20Core.STATE_LENGTH];
+        int[]  x      = new int[Salsa20Core.STATE_LENGTH];
+        byte[] block0 = new byte[Salsa20Core.OUTPUT_BLOCK_SIZE];
+        int[][] mac   = start(state, x, block0, n, k);
+
+        final int ctOff = cOff + TAG_LENGTH;
+        final int head  = Math.min(mlen, Salsa20Core.OUTPUT_BLOCK_SIZE - ZEROBYTES);
+        for (int i = 0; i < head; i++)
+            c[ctOff + i] = (byte) (m[mOff + i] ^ block0[ZEROBYTES + i]);
+        Poly1305.blocks(mac, c, ctOff, head);
+
+        for (int done = head; done < mlen; done += CHUNK) {
+            int len = Math.min(CHUNK, mlen - done);
+            Salsa20Core.xor(state, x, m, mOff + done, c, ctOff + done, len, Salsa20Core.SALSA20);
+            Poly1305.blocks(mac, c, ctOff + done, len);
+        }
+
+        finish(mac, block0, c, cOff);
+        X.destroy(block0);
+        Salsa20Core.destroy(state);
+        Salsa20Core.destroy(x);
+    }
+
+    /**
+     * Verify and decrypt.  m may be in the same array as c, at or
+     * before cOff + TAG_LENGTH.
+     *
+     * @param m receives clen - TAG_LENGTH bytes of plaintext from mOff, only if the tag verifies
+     * @param c is the tag then the ciphertext, read from cOff
+     * @param clen includes the tag
+     * @param n is NONCE_LENGTH (24 bytes)
+     * @param k is KEY_LENGTH (32 bytes)
+     * @return true if the tag verified and m holds the plaintext, else false and m is untouched
+     */
+    public static boolean secretbox_open(byte[] m, int mOff, byte[] c, int cOff, int clen, byte[] n, byte[] k)
+    {
+        if (clen < TAG_LENGTH || cOff < 0 || mOff < 0 || c.length - cOff < clen || m.length - mOff < clen - TAG_LENGTH)
+            throw new IllegalArgumentException("XSalsa20Poly1305 buffer params oflow");
+        final int mlen  = clen - TAG_LENGTH;
+        final int ctOff = cOff + TAG_LENGTH;
+
+        int[]  state  = new int[Salsa20Core.STATE_LENGTH];
+        int[]  x      = new int[Salsa20Core.STATE_LENGTH];
+        byte[] block0 = new byte[Salsa20Core.OUTPUT_BLOCK_SIZE];
+        int[][] mac   = start(state, x, block0, n, k);
+
+        Poly1305.blocks(mac, c, ctOff, mlen);
+        byte[] tag = new byte[TAG_LENGTH];
+        finish(mac, block0, tag, 0);
+        boolean good = X.ctEquals(tag, 0, c, cOff, TAG_LENGTH);
+
+        if (good) {
+            final int head = Math.min(mlen, Salsa20Core.OUTPUT_BLOCK_SIZE - ZEROBYTES);
+            for (int i = 0; i < head; i++)
+                m[mOff + i] = (byte) (c[ctOff + i] ^ block0[ZEROBYTES + i]);
+            Salsa20Core.xor(state, x, c, ctOff + head, m, mOff + head, mlen - head, Salsa20Core.SALSA20);
+        }
+        X.destroy(block0);
+        Salsa20Core.destroy(state);
+        Salsa20Core.destroy(x);
+        return good;
+    }
+
+    /**
+     * Key the state with the HSalsa20 subkey, take block 0 of the stream
+     * (leaving the state at block 1), and start the MAC with r from it.
+     */
+    private static int[][] start(int[] state, int[] x, byte[] block0, byte[] n, byte[] k)
+    {
+        if (n.length != NONCE_LENGTH)
+            throw new IllegalArgumentException("XSalsa20Poly1305 nonce length must be 24 bytes");
+        if (k.length != KEY_LENGTH)
+            throw new IllegalArgumentException("XSalsa20Poly1305 key length must be 32 bytes");
+
+        byte[] subkey = new byte[KEY_LENGTH];
+        Hsalsa20.crypto_core(subkey, n, k, Xsalsa20.sigma);
+        Salsa20Core.initState(state, subkey, n, Xsalsa20.PREFIX_LENGTH, 0);
+        X.destroy(subkey);
+
+        Salsa20Core.keystream(state, x, block0, 0, Salsa20Core.SALSA20);
+        byte[] r = X.copy(block0, 0, Poly1305.MAC_SECRET_LEN);
+        int[][] mac = Poly1305.init_context(r);
+        X.destroy(r);
+        return mac;
+    }
+
+    /** Write the tag with s from block 0, and wipe the key bytes of block 0. */
+    private static void finish(int[][] mac, byte[] block0, byte[] tag, int tagOff)
+    {
+        byte[] s = X.copy(block0, Poly1305.MAC_SECRET_LEN, Poly1305.ENC_NONCE_LEN);
+        Poly1305.finish(mac, tag, tagOff, s);
+        X.destroy(s);
+        for (int i = 0; i < ZEROBYTES; i++)
+            block0[i] = 0;
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * nacl-20110221/tests/secretbox.c, whose box is the message of the
+     * onetimeauth test in Poly1305Test.
+     */
+    static String testNaCl()
+    {
+        byte[] k = X.hex2data("1b27556473e985d462cd51197a9a46c76009549eac6474f206c4ee0844f68389");
+        byte[] n = X.hex2data("69696ee955b62b73cd62bda875fc73d68219e0036b7a0b37");
+        byte[] m = X.hex2data("0000000000000000000000000000000000000000000000000000000000000000"
+                + "be075fc53c81f2d5cf141316ebeb0c7b5228c52a4c62cbd44b66849b64244ffc"
+                + "e5ecbaaf33bd751a1ac728d45e6c61296cdc3c01233561f41db66cce314adb31"
+                + "0e3be8250c46f06dceea3a7fa1348057e2f6556ad6b1318a024a838f21af1fde"
+                + "048977eb48f59ffd4924ca1c60902e52f0a089bc76897040e082f93776384864"
+                + "5e0705");
+        byte[] want = X.hex2data("00000000000000000000000000000000"
+                + "f3ffc7703f9400e52a7dfb4b3d3305d9"
+                + "8e993b9f48681273c29650ba32fc76ce48332ea7164d96a4476fb8c531a1186a"
+                + "c0dfc17c98dce87b4da7f011ec48c97271d2c20f9b928fe2270d6fb863d51738"
+                + "b48eeee314a7cc8ab932164548e526ae90224368517acfeabd6bb3732bc0e9da"
+                + "99832b61ca01b6de56244a9e88d5f9b37973f622a43d14a6599b1f654cb45a74"
+                + "e355a5");
+
+        byte[] c = new byte[m.length];
+        if (crypto_secretbox(c, m, m.length, n, k) != 0 || !X.ctEquals(want, c))
+            throw new RuntimeException("secretbox.c vector: " + X.data2hex(c));
+
+        byte[] back = new byte[c.length];
+        if (crypto_secretbox_open(back, c, c.length, n, k) != 0 || !X.ctEquals(m, back))
+            throw new RuntimeException("secretbox.c vector does not open");
+
+        byte[] easy = secretbox(X.copy(m, ZEROBYTES, m.length - ZEROBYTES), n, k);
+        if (!X.ctEquals(easy, 0, want, BOXZEROBYTES, easy.length))
+            throw new RuntimeException("easy layout differs from NaCl");
+        return "NaCl";
+    }
+
+    /**
+     * Round trips at lengths around the first block and the chunks, in
+     * place, and any flipped bit or wrong nonce must fail to open and
+     * leave the output alone.
+     */
+    static String testRoundTrip()
+    {
+        final int[] lens = { 0, 1, 31, 32, 33, 63, 64, 65, CHUNK - 1, CHUNK + 32, 3 * CHUNK + 17 };
+        for (int i = 0; i < lens.length + 20; i++) {
+            int    len = (i < lens.length) ? lens[i] : Support.exampleInt(0, 10000);
+            byte[] k   = Support.exampleData(KEY_LENGTH);
+            byte[] n   = Support.exampleData(NONCE_LENGTH);
+            byte[] m   = Support.exampleData(len);
+
+            byte[] c = secretbox(m, n, k);
+            byte[] want = new byte[len];
+            byte[] stream = new byte[ZEROBYTES + len];
+            Xsalsa20.crypto_stream(stream, stream.length, n, k);
+            for (int j = 0; j < len; j++)
+                want[j] = (byte) (m[j] ^ stream[ZEROBYTES + j]);
+            if (!X.ctEquals(want, 0, c, TAG_LENGTH, len))
+                throw new RuntimeException("ciphertext is not XSalsa20 from byte 32, len " + len);
+
+            byte[] box = new byte[ZEROBYTES + len];                 // NaCl layout, in place
+            System.arraycopy(m, 0, box, ZEROBYTES, len);
+            crypto_secretbox(box, box, box.length, n, k);
+            if (!X.ctEquals(c, 0, box, BOXZEROBYTES, c.length))
+                throw new RuntimeException("NaCl layout differs, len " + len);
+            if (crypto_secretbox_open(box, box, box.length, n, k) != 0 || !X.ctEquals(m, 0, box, ZEROBYTES, len))
+                throw new RuntimeException("NaCl layout does not open in place, len " + len);
+
+            if (!X.ctEquals(m, secretbox_open(c, n, k)))
+                throw new RuntimeException("does not open, len " + len);
+
+            byte[] bad = X.copy(c);
+            bad[Support.exampleInt(0, bad.length - 1)] ^= 1 << Support.exampleInt(0, 7);
+            byte[] out = new byte[len];
+            if (secretbox_open(out, 0, bad, 0, bad.length, n, k) || !X.ctEquals(new byte[len], out))
+                throw new RuntimeException("forgery opened, len " + len);
+            n[Support.exampleInt(0, NONCE_LENGTH - 1)] ^= 1;
+            if (secretbox_open(c, n, k) != null)
+                throw new RuntimeException("wrong nonce opened, len " + len);
+        }
+        return "RoundTrip";
+    }
+
+    public static String selfTest()
+    {
+        String s = "XSalsa20Poly1305: ";
+        s += testNaCl() + ". ";
+        s += testRoundTrip() + ". ";
+        return s + "good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
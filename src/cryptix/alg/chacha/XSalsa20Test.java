@@ -1,6 +1,9 @@
 package cryptix.alg.chacha;
 
 
+import java.nio.ByteBuffer;
+
+import cryptix.Support;
 import cryptix.X;
 
 /**
@@ -22,9 +25,62 @@ public class XSalsa20Test
 		    String s = "";
 		    //s += selfTest(vectors128); // does not work for 128bit keys
 	        s += selfTest(XSalsa20Vectors.vectors256);
+	        s += "\n    " + testInstance();
 		    return s;
 		}
 
+		/**
+		 * An instance must give the static call's stream, whether it hits
+		 * its subkey cache or not, in chunks at offsets, and over buffers.
+		 */
+		static String testInstance() {
+		    byte[] key = Support.exampleData(Xsalsa20.KEY_LENGTH);
+		    byte[] n   = Support.exampleData(Xsalsa20.NONCE_LENGTH);
+		    Xsalsa20 xs = new Xsalsa20(key);
+		    try {
+		        for (int i = 0; i < 30; i++) {
+		            if (i % 4 == 0)
+		                n = Support.exampleData(Xsalsa20.NONCE_LENGTH);    // new prefix
+		            else
+		                n[16 + i % 8]++;                                    // same prefix
+
+		            int    len  = Support.exampleInt(0, 2000);
+		            byte[] m    = Support.exampleData(len);
+		            byte[] want = new byte[len];
+		            Xsalsa20.crypto_stream_xor(want, m, len, n, key);
+
+		            byte[] whole = new byte[len];
+		            xs.crypto_stream_xor(whole, m, len, n);
+		            if (!X.ctEquals(want, whole))
+		                throw new RuntimeException("instance differs at " + i + ", len " + len);
+
+		            byte[] chunks = X.copy(m);                  // in place, in random chunks
+		            for (int off = 0; off < len; ) {
+		                int k = Math.min(len - off, Support.exampleInt(1, 300));
+		                xs.crypto_stream_xor_at(chunks, off, chunks, off, k, n, off);
+		                off += k;
+		            }
+		            if (!X.ctEquals(want, chunks))
+		                throw new RuntimeException("chunks differ at " + i + ", len " + len);
+
+		            ByteBuffer[] in  = ChaCha.split(m);
+		            ByteBuffer[] out = ChaCha.split(new byte[len]);
+		            int[] starts = ChaCha.positions(out);
+		            if (xs.crypto_stream_xor(out, in, n) != len || !X.ctEquals(want, ChaCha.join(out, starts)))
+		                throw new RuntimeException("buffers differ at " + i + ", len " + len);
+		        }
+		    } finally {
+		        xs.close();
+		    }
+
+		    try {                                               // the key is gone, not zero
+		        xs.crypto_stream_xor(new byte[64], new byte[64], 64, n);
+		        throw new RuntimeException("closed instance still crypts");
+		    } catch (IllegalStateException expected) {
+		    }
+		    return "Instance";
+		}
+
 	    public static String selfTest(String[][] vectors) {
 	        
 	        int q = vectors.length;
@@ -1,9 +1,20 @@
 package cryptix.alg.chacha;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import cryptix.X;
+
 
 /**
  *  XSalsa20 is a variant of Salsa20 with a longer nonce.
  *
+ *  <p>The static calls derive the HSalsa20 subkey every time.  An
+ *  instance holds the key and remembers the subkey for the last nonce
+ *  prefix (the first 16 bytes) it saw, so chunks under one nonce, or
+ *  nonces that share a prefix, pay for HSalsa20 once.  An instance also
+ *  crypts at any byte offset of the stream, and over buffer sequences,
+ *  for streams longer than an array.  close() wipes the key and subkey.</p>
  *
  * @see Salsa20
  * @see (PDF) D. J. Bernstein. "Extending the Salsa20 nonce." URL: http://cr.yp.to/papers.html#xsalsa.
@@ -28,11 +39,151 @@ public class Xsalsa20 {
 		return Salsa20.crypto_stream(c, clen, n, 16, subkey);
 	}
 	
+	/**
+	 * @param mlen is the number of bytes to crypt, within both arrays
+	 *        (for longer streams, see the instance calls)
+	 */
 	public static int crypto_stream_xor(byte[] c, byte[] m, long mlen, byte[] n, byte[] k)
 	{
+		if (mlen < 0 || mlen > m.length || mlen > c.length)
+			throw new IllegalArgumentException("Xsalsa20 mlen outside the arrays");
+
 		byte[] subkey = new byte[32];
 		
 		Hsalsa20.crypto_core(subkey, n, k, sigma);
 		return Salsa20.crypto_stream_xor(c, m, (int) mlen, n, 16, subkey);
 	}
+
+	public static final int
+		KEY_LENGTH          = 32,
+		NONCE_LENGTH        = 24,
+		PREFIX_LENGTH       = 16;
+
+	private final byte[] key;
+	private final byte[] prefix = new byte[PREFIX_LENGTH];
+	private final int[]  state  = new int[Salsa20Core.STATE_LENGTH];   // keyed with the subkey
+	private final int[]  x      = new int[Salsa20Core.STATE_LENGTH];
+	private final byte[] block  = new byte[Salsa20Core.OUTPUT_BLOCK_SIZE];
+	private boolean      cached = false;
+	private boolean      closed = false;
+
+	/**
+	 * @param k is the 32 byte key, copied
+	 */
+	public Xsalsa20(byte[] k)
+	{
+		if (k.length != KEY_LENGTH)
+			throw new IllegalArgumentException("Xsalsa20 key length must be 32 bytes");
+		key = X.copy(k);
+	}
+
+	/**
+	 * Crypt under this key from the start of the stream for nonce n,
+	 * reusing the subkey if n starts with the same 16 bytes as the
+	 * nonce of the previous call.
+	 *
+	 * @param c is the output, has m xor'd with the cipherstream
+	 * @param m is the input, unchanged (unless it is c)
+	 * @param mlen is the number of bytes, within both arrays
+	 * @param n is NONCE_LENGTH (24 bytes)
+	 * @return 0
+	 */
+	public int crypto_stream_xor(byte[] c, byte[] m, long mlen, byte[] n)
+	{
+		if (mlen < 0 || mlen > m.length || mlen > c.length)
+			throw new IllegalArgumentException("Xsalsa20 mlen outside the arrays");
+		crypto_stream_xor_at(c, 0, m, 0, (int) mlen, n, 0);
+		return 0;
+	}
+
+	/**
+	 * Crypt len bytes of the stream for nonce n, starting at byte offset
+	 * of the stream, so a long stream can be done chunk by chunk, in any
+	 * order, with the subkey derived once.
+	 *
+	 * @param c is the output, written from cOff
+	 * @param m is the input, read from mOff (may be c at the same offset)
+	 * @param len is the number of bytes in this chunk
+	 * @param n is NONCE_LENGTH (24 bytes)
+	 * @param offset is the byte offset of the chunk in the stream
+	 */
+	public void crypto_stream_xor_at(byte[] c, int cOff, byte[] m, int mOff, int len, byte[] n, long offset)
+	{
+		if (len < 0 || cOff < 0 || mOff < 0 || c.length - cOff < len || m.length - mOff < len)
+			throw new IllegalArgumentException("Xsalsa20 buffer params oflow");
+		if (offset < 0)
+			throw new IllegalArgumentException("negative stream offset");
+
+		start(n, offset / Salsa20Core.OUTPUT_BLOCK_SIZE);
+		int skip = (int) (offset % Salsa20Core.OUTPUT_BLOCK_SIZE);
+		if (skip > 0 && len > 0) {
+			Salsa20Core.keystream(state, x, block, 0, Salsa20Core.SALSA20);
+			int k = Math.min(len, Salsa20Core.OUTPUT_BLOCK_SIZE - skip);
+			for (int i = 0; i < k; i++)
+				c[cOff + i] = (byte) (m[mOff + i] ^ block[skip + i]);
+			cOff += k;
+			mOff += k;
+			len  -= k;
+		}
+		Salsa20Core.xor(state, x, m, mOff, c, cOff, len, Salsa20Core.SALSA20);
+	}
+
+	/**
+	 * Crypt the stream for nonce n over a sequence of buffers, as
+	 * {@link Salsa20#crypto_stream_xor(ByteBuffer[], ByteBuffer[], byte[], int, byte[])}
+	 * does, for streams longer than an array.
+	 *
+	 * @param c are the outputs, with room for all of m between them
+	 * @param m are the inputs (may be c, to crypt in place)
+	 * @param n is NONCE_LENGTH (24 bytes)
+	 * @return the number of bytes crypted
+	 * @throws BufferOverflowException if c has too little room
+	 */
+	public long crypto_stream_xor(ByteBuffer[] c, ByteBuffer[] m, byte[] n)
+	{
+		start(n, 0);
+		return BufferSequence.xor(c, m, new BufferSequence.Cipher() {
+			void xor(ByteBuffer in, int inPos, ByteBuffer out, int outPos, int len) {
+				Salsa20Core.xor(state, x, in, inPos, out, outPos, len, Salsa20Core.SALSA20);
+			}
+			void keystream(byte[] b) {
+				Salsa20Core.keystream(state, x, b, 0, Salsa20Core.SALSA20);
+			}
+		});
+	}
+
+	/** Wipe the key and any cached subkey, the instance is no use after. */
+	public void close()
+	{
+		X.destroy(key);
+		X.destroy(prefix);
+		X.destroy(block);
+		Salsa20Core.destroy(state);
+		Salsa20Core.destroy(x);
+		cached = false;
+		closed = true;
+	}
+
+	/**
+	 * Point the state at blockcounter of the stream for n, deriving
+	 * the subkey only if the prefix of n is new.
+	 */
+	private void start(byte[] n, long blockcounter)
+	{
+		if (closed)
+			throw new IllegalStateException("Xsalsa20 closed");
+		if (n.length != NONCE_LENGTH)
+			throw new IllegalArgumentException("Xsalsa20 nonce length must be 24 bytes");
+
+		if (!cached || !X.ctEquals(prefix, 0, n, 0, PREFIX_LENGTH)) {
+			System.arraycopy(n, 0, prefix, 0, PREFIX_LENGTH);
+			byte[] subkey = new byte[32];
+			Hsalsa20.crypto_core(subkey, prefix, key, sigma);
+			Salsa20Core.setKey(state, subkey);
+			X.destroy(subkey);
+			cached = true;
+		}
+		Salsa20Core.setNonce(state, n, PREFIX_LENGTH);
+		Salsa20Core.setCounter(state, blockcounter);
+	}
 }
\ No newline at end of file
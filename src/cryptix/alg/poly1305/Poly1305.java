@@ -6,6 +6,9 @@ import cryptix.X;
  * This is a working raw Poly1305,
  * which means it is assumes that the encryption
  * of the nonce is already done / out of scope.
+ * <p>
+ * The arithmetic is done by {@link Poly1305Core} in 26 bit limbs;
+ * the byte-limb code of the reference is kept below as auth_ref().
  * 
  * @author adalovelace
  */
@@ -152,56 +155,121 @@ public class Poly1305 {
      * @param ms is a mac-secret of 16 bytes, becomes r
      */
     public static void auth(byte[] mac, int macOffset, byte[] msg, int msgOffset, long msgLen, byte[] ekn, byte[] ms)
+    {
+        if (msg == null || msg.length - msgOffset < msgLen)
+            throw new RuntimeException("Poly1305 msg params oflow");
+
+        int[][] context = init_context(ms);
+        blocks(context, msg, msgOffset, (int) msgLen);   // msgLen fits, it is within msg
+        finish(context, mac, macOffset, ekn);
+    }
+
+    /*
+     * Incremental use:  auth() split into its three steps, so a caller
+     * can feed the message in as many calls as it likes, for example
+     * to MAC each piece of ciphertext as it is produced.
+     * The context is opaque, { r, 5r, h, powers of r } in 26 bit limbs
+     * for Poly1305Core.
+     */
+    static final int
+        CTX_R   = 0,
+        CTX_R5  = 1,
+        CTX_H   = 2,
+        CTX_POW = 3;
+
+    /**
+     * Start an incremental MAC.
+     * @param ms is a mac-secret of 16 bytes, becomes r (clamped)
+     * @return a context for blocks() and finish()
+     */
+    public static int[][] init_context(byte[] ms)
+    {
+        if (ms == null || ms.length != MAC_SECRET_LEN)
+            throw new RuntimeException("Poly1305 mac secret r not 16");
+
+        int[][] context = { new int[Poly1305Core.LIMBS], new int[Poly1305Core.R5_LIMBS],
+                            new int[Poly1305Core.LIMBS], new int[Poly1305Core.POW_LENGTH] };
+        Poly1305Core.setKey(context[CTX_R], context[CTX_R5], ms, 0);
+        return context;
+    }
+
+    /**
+     * Add the next msgLen bytes of the message to the MAC.
+     * Every call but the last must be a multiple of BLOCK_LEN (16) bytes;
+     * a short block is padded as the final one of the message.
+     *
+     * @param context from init_context()
+     * @param msg
+     * @param msgOffset
+     * @param msgLen
+     */
+    public static void blocks(int[][] context, byte[] msg, int msgOffset, int msgLen)
+    {
+        if (msgLen < 0 || msg.length - msgOffset < msgLen)
+            throw new RuntimeException("Poly1305 msg params oflow");
+
+        Poly1305Core.blocks(context[CTX_R], context[CTX_R5], context[CTX_POW], context[CTX_H], msg, msgOffset, msgLen);
+    }
+
+    /**
+     * Finish the MAC, and wipe the context.
+     *
+     * @param context from init_context(), no use after
+     * @param mac an array to place the calculated MAC into
+     * @param macOffset where in mac to write the MAC
+     * @param ekn is the encrypted nonce eK(n) of 16 bytes, using whatever encryption algorithm
+     */
+    public static void finish(int[][] context, byte[] mac, int macOffset, byte[] ekn)
     {
         if (mac == null || mac.length - macOffset < MAC_LENGTH)
             throw new RuntimeException("Poly1305 mac secret too short");
         if (ekn == null || ekn.length != ENC_NONCE_LEN)
             throw new RuntimeException("Poly1305 encrypted nonce ekn not 16");
-        if (ms == null || ms.length != MAC_SECRET_LEN)
-            throw new RuntimeException("Poly1305 mac secret r not 16");
-        if (msg == null || msg.length - msgOffset < msgLen)
-            throw new RuntimeException("Poly1305 msg params oflow");
-       
+
+        Poly1305Core.finish(context[CTX_H], mac, macOffset, ekn);
+
+        for (int[] row : context)
+            for (int j = 0; j < row.length; ++j)
+                row[j] = 0;
+    }
+
+    /**
+     * The original byte-limb Poly1305, from crypto_onetimeauth() in NaCl's
+     * ref:  17 limbs of 8 bits, multiplied out in full for every block.
+     * Slow, but plainly the paper's arithmetic, so it is kept to check
+     * Poly1305Core against.
+     * @see #auth(byte[], int, byte[], int, long, byte[], byte[])
+     */
+    static void auth_ref(byte[] mac, int macOffset, byte[] msg, int msgOffset, int msgLen, byte[] ekn, byte[] ms)
+    {
         int[] r = clampMacSecretToR(ms);
         int[] h = new int[ROW_LEN];
         int[] c = new int[ROW_LEN];
 
-        while (msgLen > 0)     // this flow taken from crypto_onetimeauth()
+        while (msgLen > 0)
         {
-            for (int j = 0; j < ROW_LEN; ++j)    // quicker than reallocating?
+            for (int j = 0; j < ROW_LEN; ++j)
                 c[j] = 0;
 
             int i = 0;
-            //System.err.print("      ");
             for (i = 0; (i < BLOCK_LEN) && (i < msgLen); ++i) {
-            //    System.err.print(", " + (msg[msgOffset + i]&0xff));
                 c[i] = msg[msgOffset + i] & INT_BYTE_MASK;
             }
-            //System.err.println("");
 
             c[i] = 1;
-            //System.err.println( toString(c, "    c"));
             msgOffset += i;
             msgLen -= i;
             add(h, c);
-            //System.err.println( toString(h, "    h"));
             mulmod(h, r);
-            //System.err.println( toString(h, "    h"));
         }
-        //System.err.println("===================================\n");
 
         freeze(h);
-        //System.err.println( toString(h, "h    "));
 
-        //System.err.println( toString(key, "key   "));
         for (int j = 0; j < 16; ++j)
             c[j] = ekn[j] & INT_BYTE_MASK;
 
-        //System.err.println( toString(c, "c!   "));
-
         c[ROW_LEN - 1] = 0;
         add(h, c);
-        //System.err.println( toString(h, "h    "));
 
         for (int j = 0; j < MAC_LENGTH; ++j)
             mac[j + macOffset] = (byte)h[j];
@@ -0,0 +1,356 @@
+package cryptix.alg.poly1305;
+
+/**
+ * <p>
+ * The Poly1305 arithmetic in five limbs of 26 bits, after Andrew Moon's
+ * poly1305-donna.  The accumulator h and the key r are each held as
+ * <code>int[5]</code>, least significant limb first, so a block is
+ * 25 multiplies of 32 by 32 bits into 64, against the 17 by 17 byte
+ * schoolbook of {@link Poly1305#mulmod}.
+ * </p><p>
+ * The reduction mod 2<sup>130</sup>-5 is folded into the multiply:
+ * a product that lands at 2<sup>130</sup> or above is worth 5 times
+ * as much at the bottom, so limbs 1 to 4 of r are kept again times 5,
+ * in <code>r5</code>, once per key.  The clamp on r leaves the top
+ * bits of each of those limbs clear, so no column of the product can
+ * overflow a long.
+ * </p><p>
+ * Long messages go four blocks a step, as
+ * h = (h + m1)r<sup>4</sup> + m2 r<sup>3</sup> + m3 r<sup>2</sup> + m4 r,
+ * which is the same sum as four steps of Horner's rule, but the four
+ * products do not wait on each other, so the multiplies can overlap.
+ * The powers of r are worked out in <code>pow</code> on the first call
+ * long enough to use them;  shorter messages, and the tail of a long
+ * one, go a block at a time and never pay for them.
+ * </p><p>
+ * Nothing is allocated here;  the caller owns the arrays, which
+ * {@link Poly1305} keeps as the rows of its context.
+ * </p>
+ */
+final class Poly1305Core
+{
+    private Poly1305Core() { }
+
+    /** Number of 26 bit limbs in h and r, and of r limbs times 5. */
+    static final int
+        LIMBS    = 5,
+        R5_LIMBS = 4;
+
+    /**
+     * The pow array holds r^2, r^3, r^4 each as LIMBS limbs then
+     * R5_LIMBS times 5, and a last word set once they are there.
+     */
+    static final int
+        POW_R2     = 0,
+        POW_R3     = LIMBS + R5_LIMBS,
+        POW_R4     = 2 * (LIMBS + R5_LIMBS),
+        POW_READY  = 3 * (LIMBS + R5_LIMBS),
+        POW_LENGTH = POW_READY + 1;
+
+    static final int
+        BLOCK_LEN  = 16,
+        BLOCKS4    = 4 * BLOCK_LEN;
+
+    private static final int
+        MASK26    = 0x3ffffff,
+        HIBIT     = 1 << 24;        // the 2^128 pad bit, as seen from limb 4
+
+    /** Little-endian 32 bit word at off. */
+    static int load(byte[] b, int off)
+    {
+        return  (b[off]     & 0xff)
+             | ((b[off + 1] & 0xff) <<  8)
+             | ((b[off + 2] & 0xff) << 16)
+             | ((b[off + 3] & 0xff) << 24);
+    }
+
+    static void store(byte[] b, int off, int w)
+    {
+        b[off]     = (byte)  w;
+        b[off + 1] = (byte) (w >>>  8);
+        b[off + 2] = (byte) (w >>> 16);
+        b[off + 3] = (byte) (w >>> 24);
+    }
+
+    /**
+     * Clamp the 16 byte mac-secret at ms[off] and lay it into r and r5.
+     * The ms is not changed.
+     */
+    static void setKey(int[] r, int[] r5, byte[] ms, int off)
+    {
+        int t0 = load(ms, off)      & 0x0fffffff;
+        int t1 = load(ms, off + 4)  & 0x0ffffffc;
+        int t2 = load(ms, off + 8)  & 0x0ffffffc;
+        int t3 = load(ms, off + 12) & 0x0ffffffc;
+
+        r[0] =   t0                         & MASK26;
+        r[1] = ((t0 >>> 26) | (t1 <<  6))   & MASK26;
+        r[2] = ((t1 >>> 20) | (t2 << 12))   & MASK26;
+        r[3] = ((t2 >>> 14) | (t3 << 18))   & MASK26;
+        r[4] =   t3 >>>  8;
+
+        for (int i = 0; i < R5_LIMBS; i++)
+            r5[i] = r[i + 1] * 5;
+    }
+
+    /**
+     * h = (h + block) * r mod 2^130-5, for each block of msg[off..off+len).
+     * A short last block is padded with a 1 byte and zeros, as the
+     * final block of a message;  a full block has the 1 at 2^128.
+     * Runs of four blocks go through blocks4(), the rest one at a time.
+     */
+    static void blocks(int[] r, int[] r5, int[] pow, int[] h, byte[] msg, int off, int len)
+    {
+        if (len >= BLOCKS4) {
+            if (pow[POW_READY] == 0)
+                powers(r, r5, pow);
+            int n = len & ~(BLOCKS4 - 1);
+            blocks4(pow, r, r5, h, msg, off, n);
+            off += n;
+            len -= n;
+        }
+        blocks1(r, r5, h, msg, off, len);
+    }
+
+    /** The one-block path of blocks(), for any len. */
+    static void blocks1(int[] r, int[] r5, int[] h, byte[] msg, int off, int len)
+    {
+        final long r0 = r[0], r1 = r[1], r2 = r[2], r3 = r[3], r4 = r[4];
+        final long s1 = r5[0], s2 = r5[1], s3 = r5[2], s4 = r5[3];
+        int h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+
+        while (len > 0)
+        {
+            int t0, t1, t2, t3, hibit;
+            if (len >= BLOCK_LEN) {
+                t0 = load(msg, off);
+                t1 = load(msg, off + 4);
+                t2 = load(msg, off + 8);
+                t3 = load(msg, off + 12);
+                hibit = HIBIT;
+                off += BLOCK_LEN;
+                len -= BLOCK_LEN;
+            } else {
+                long lo = 0, hi = 0;            // the short block, then 1, then zeros
+                for (int i = 0; i < len; i++) {
+                    long b = msg[off + i] & 0xff;
+                    if (i < 8)
+                        lo |= b << (8 * i);
+                    else
+                        hi |= b << (8 * (i - 8));
+                }
+                if (len < 8)
+                    lo |= 1L << (8 * len);
+                else
+                    hi |= 1L << (8 * (len - 8));
+                t0 = (int) lo;
+                t1 = (int) (lo >>> 32);
+                t2 = (int) hi;
+                t3 = (int) (hi >>> 32);
+                hibit = 0;
+                len = 0;
+            }
+
+            h0 +=   t0                          & MASK26;
+            h1 += ((t0 >>> 26) | (t1 <<  6))    & MASK26;
+            h2 += ((t1 >>> 20) | (t2 << 12))    & MASK26;
+            h3 += ((t2 >>> 14) | (t3 << 18))    & MASK26;
+            h4 +=  (t3 >>>  8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c;
+            c = d0 >>> 26;  h0 = (int) d0 & MASK26;  d1 += c;
+            c = d1 >>> 26;  h1 = (int) d1 & MASK26;  d2 += c;
+            c = d2 >>> 26;  h2 = (int) d2 & MASK26;  d3 += c;
+            c = d3 >>> 26;  h3 = (int) d3 & MASK26;  d4 += c;
+            c = d4 >>> 26;  h4 = (int) d4 & MASK26;
+            c = h0 + c * 5;
+            h0 = (int) c & MASK26;
+            h1 += (int) (c >>> 26);
+        }
+
+        h[0] = h0;  h[1] = h1;  h[2] = h2;  h[3] = h3;  h[4] = h4;
+    }
+
+    /**
+     * The four-block path of blocks(), for len a multiple of BLOCKS4,
+     * all full blocks.  pow must be ready.  Each column sums 20
+     * products of under 2^27 by under 5 * 2^26, so still fits a long.
+     */
+    static void blocks4(int[] pow, int[] r, int[] r5, int[] h, byte[] msg, int off, int len)
+    {
+        final long
+            a0 = pow[POW_R4],     a1 = pow[POW_R4 + 1], a2 = pow[POW_R4 + 2], a3 = pow[POW_R4 + 3], a4 = pow[POW_R4 + 4],
+            as1 = pow[POW_R4 + 5], as2 = pow[POW_R4 + 6], as3 = pow[POW_R4 + 7], as4 = pow[POW_R4 + 8],
+            b0 = pow[POW_R3],     b1 = pow[POW_R3 + 1], b2 = pow[POW_R3 + 2], b3 = pow[POW_R3 + 3], b4 = pow[POW_R3 + 4],
+            bs1 = pow[POW_R3 + 5], bs2 = pow[POW_R3 + 6], bs3 = pow[POW_R3 + 7], bs4 = pow[POW_R3 + 8],
+            c0 = pow[POW_R2],     c1 = pow[POW_R2 + 1], c2 = pow[POW_R2 + 2], c3 = pow[POW_R2 + 3], c4 = pow[POW_R2 + 4],
+            cs1 = pow[POW_R2 + 5], cs2 = pow[POW_R2 + 6], cs3 = pow[POW_R2 + 7], cs4 = pow[POW_R2 + 8],
+            e0 = r[0],            e1 = r[1],            e2 = r[2],            e3 = r[3],            e4 = r[4],
+            es1 = r5[0],          es2 = r5[1],          es3 = r5[2],          es4 = r5[3];
+        int h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+
+        for (final int end = off + len; off < end; off += BLOCKS4)
+        {
+            /* h + m1, times r^4 */
+            long x0 = h0 + (load(msg, off)      & MASK26);
+            long x1 = h1 + ((load(msg, off + 3)  >>> 2) & MASK26);
+            long x2 = h2 + ((load(msg, off + 6)  >>> 4) & MASK26);
+            long x3 = h3 + ((load(msg, off + 9)  >>> 6) & MASK26);
+            long x4 = h4 + ((load(msg, off + 12) >>> 8) | HIBIT);
+
+            long d0 = x0 * a0 + x1 * as4 + x2 * as3 + x3 * as2 + x4 * as1;
+            long d1 = x0 * a1 + x1 * a0  + x2 * as4 + x3 * as3 + x4 * as2;
+            long d2 = x0 * a2 + x1 * a1  + x2 * a0  + x3 * as4 + x4 * as3;
+            long d3 = x0 * a3 + x1 * a2  + x2 * a1  + x3 * a0  + x4 * as4;
+            long d4 = x0 * a4 + x1 * a3  + x2 * a2  + x3 * a1  + x4 * a0;
+
+            /* m2, times r^3 */
+            int o = off + BLOCK_LEN;
+            x0 =  load(msg, o)               & MASK26;
+            x1 = (load(msg, o + 3)  >>> 2)   & MASK26;
+            x2 = (load(msg, o + 6)  >>> 4)   & MASK26;
+            x3 = (load(msg, o + 9)  >>> 6)   & MASK26;
+            x4 = (load(msg, o + 12) >>> 8)   | HIBIT;
+
+            d0 += x0 * b0 + x1 * bs4 + x2 * bs3 + x3 * bs2 + x4 * bs1;
+            d1 += x0 * b1 + x1 * b0  + x2 * bs4 + x3 * bs3 + x4 * bs2;
+            d2 += x0 * b2 + x1 * b1  + x2 * b0  + x3 * bs4 + x4 * bs3;
+            d3 += x0 * b3 + x1 * b2  + x2 * b1  + x3 * b0  + x4 * bs4;
+            d4 += x0 * b4 + x1 * b3  + x2 * b2  + x3 * b1  + x4 * b0;
+
+            /* m3, times r^2 */
+            o += BLOCK_LEN;
+            x0 =  load(msg, o)               & MASK26;
+            x1 = (load(msg, o + 3)  >>> 2)   & MASK26;
+            x2 = (load(msg, o + 6)  >>> 4)   & MASK26;
+            x3 = (load(msg, o + 9)  >>> 6)   & MASK26;
+            x4 = (load(msg, o + 12) >>> 8)   | HIBIT;
+
+            d0 += x0 * c0 + x1 * cs4 + x2 * cs3 + x3 * cs2 + x4 * cs1;
+            d1 += x0 * c1 + x1 * c0  + x2 * cs4 + x3 * cs3 + x4 * cs2;
+            d2 += x0 * c2 + x1 * c1  + x2 * c0  + x3 * cs4 + x4 * cs3;
+            d3 += x0 * c3 + x1 * c2  + x2 * c1  + x3 * c0  + x4 * cs4;
+            d4 += x0 * c4 + x1 * c3  + x2 * c2  + x3 * c1  + x4 * c0;
+
+            /* m4, times r */
+            o += BLOCK_LEN;
+            x0 =  load(msg, o)               & MASK26;
+            x1 = (load(msg, o + 3)  >>> 2)   & MASK26;
+            x2 = (load(msg, o + 6)  >>> 4)   & MASK26;
+            x3 = (load(msg, o + 9)  >>> 6)   & MASK26;
+            x4 = (load(msg, o + 12) >>> 8)   | HIBIT;
+
+            d0 += x0 * e0 + x1 * es4 + x2 * es3 + x3 * es2 + x4 * es1;
+            d1 += x0 * e1 + x1 * e0  + x2 * es4 + x3 * es3 + x4 * es2;
+            d2 += x0 * e2 + x1 * e1  + x2 * e0  + x3 * es4 + x4 * es3;
+            d3 += x0 * e3 + x1 * e2  + x2 * e1  + x3 * e0  + x4 * es4;
+            d4 += x0 * e4 + x1 * e3  + x2 * e2  + x3 * e1  + x4 * e0;
+
+            long c;
+            c = d0 >>> 26;  h0 = (int) d0 & MASK26;  d1 += c;
+            c = d1 >>> 26;  h1 = (int) d1 & MASK26;  d2 += c;
+            c = d2 >>> 26;  h2 = (int) d2 & MASK26;  d3 += c;
+            c = d3 >>> 26;  h3 = (int) d3 & MASK26;  d4 += c;
+            c = d4 >>> 26;  h4 = (int) d4 & MASK26;
+            c = h0 + c * 5;
+            h0 = (int) c & MASK26;
+            h1 += (int) (c >>> 26);
+        }
+
+        h[0] = h0;  h[1] = h1;  h[2] = h2;  h[3] = h3;  h[4] = h4;
+    }
+
+    /** Work out r^2, r^3, r^4 into pow, and mark it ready. */
+    static void powers(int[] r, int[] r5, int[] pow)
+    {
+        System.arraycopy(r, 0, pow, POW_R2, LIMBS);                 // r^2 = r * r
+        mul(pow, POW_R2, r, r5);
+        System.arraycopy(pow, POW_R2, pow, POW_R3, LIMBS);          // r^3 = r^2 * r
+        mul(pow, POW_R3, r, r5);
+        System.arraycopy(pow, POW_R3, pow, POW_R4, LIMBS);          // r^4 = r^3 * r
+        mul(pow, POW_R4, r, r5);
+        for (int p = POW_R2; p < POW_READY; p += LIMBS + R5_LIMBS)
+            for (int i = 0; i < R5_LIMBS; i++)
+                pow[p + LIMBS + i] = pow[p + 1 + i] * 5;
+        pow[POW_READY] = 1;
+    }
+
+    /** x = x * r mod 2^130-5, x being the LIMBS limbs at xOff, carried. */
+    private static void mul(int[] x, int xOff, int[] r, int[] r5)
+    {
+        final long r0 = r[0], r1 = r[1], r2 = r[2], r3 = r[3], r4 = r[4];
+        final long s1 = r5[0], s2 = r5[1], s3 = r5[2], s4 = r5[3];
+        final long x0 = x[xOff], x1 = x[xOff + 1], x2 = x[xOff + 2], x3 = x[xOff + 3], x4 = x[xOff + 4];
+
+        long d0 = x0 * r0 + x1 * s4 + x2 * s3 + x3 * s2 + x4 * s1;
+        long d1 = x0 * r1 + x1 * r0 + x2 * s4 + x3 * s3 + x4 * s2;
+        long d2 = x0 * r2 + x1 * r1 + x2 * r0 + x3 * s4 + x4 * s3;
+        long d3 = x0 * r3 + x1 * r2 + x2 * r1 + x3 * r0 + x4 * s4;
+        long d4 = x0 * r4 + x1 * r3 + x2 * r2 + x3 * r1 + x4 * r0;
+
+        long c;
+        c = d0 >>> 26;  d0 &= MASK26;  d1 += c;
+        c = d1 >>> 26;  d1 &= MASK26;  d2 += c;
+        c = d2 >>> 26;  d2 &= MASK26;  d3 += c;
+        c = d3 >>> 26;  d3 &= MASK26;  d4 += c;
+        c = d4 >>> 26;  d4 &= MASK26;
+        d0 += c * 5;
+        c = d0 >>> 26;  d0 &= MASK26;  d1 += c;
+
+        x[xOff]     = (int) d0;
+        x[xOff + 1] = (int) d1;
+        x[xOff + 2] = (int) d2;
+        x[xOff + 3] = (int) d3;
+        x[xOff + 4] = (int) d4;
+    }
+
+    /**
+     * mac = (h mod 2^130-5) + ekn mod 2^128, in constant time.
+     * h is left fully reduced, but the caller should wipe it.
+     */
+    static void finish(int[] h, byte[] mac, int macOffset, byte[] ekn)
+    {
+        int h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+        int c;
+
+        c = h1 >>> 26;  h1 &= MASK26;  h2 += c;
+        c = h2 >>> 26;  h2 &= MASK26;  h3 += c;
+        c = h3 >>> 26;  h3 &= MASK26;  h4 += c;
+        c = h4 >>> 26;  h4 &= MASK26;  h0 += c * 5;
+        c = h0 >>> 26;  h0 &= MASK26;  h1 += c;
+
+        /* g = h + 5 - 2^130, and take it if it did not go negative */
+        int g0 = h0 + 5;    c = g0 >>> 26;  g0 &= MASK26;
+        int g1 = h1 + c;    c = g1 >>> 26;  g1 &= MASK26;
+        int g2 = h2 + c;    c = g2 >>> 26;  g2 &= MASK26;
+        int g3 = h3 + c;    c = g3 >>> 26;  g3 &= MASK26;
+        int g4 = h4 + c - (1 << 26);
+
+        int mask = (g4 >>> 31) - 1;             // all ones if h >= p
+        h0 = (h0 & ~mask) | (g0 & mask);
+        h1 = (h1 & ~mask) | (g1 & mask);
+        h2 = (h2 & ~mask) | (g2 & mask);
+        h3 = (h3 & ~mask) | (g3 & mask);
+        h4 = (h4 & ~mask) | (g4 & mask);
+
+        /* back to 4 words of 32 bits, mod 2^128, and add ekn */
+        long w0 = ( h0         | (h1 << 26)) & 0xffffffffL;
+        long w1 = ((h1 >>>  6) | (h2 << 20)) & 0xffffffffL;
+        long w2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        long w3 = ((h3 >>> 18) | (h4 <<  8)) & 0xffffffffL;
+
+        long f;
+        f = w0 + (load(ekn,  0) & 0xffffffffL);            store(mac, macOffset,      (int) f);
+        f = w1 + (load(ekn,  4) & 0xffffffffL) + (f >>> 32); store(mac, macOffset + 4,  (int) f);
+        f = w2 + (load(ekn,  8) & 0xffffffffL) + (f >>> 32); store(mac, macOffset + 8,  (int) f);
+        f = w3 + (load(ekn, 12) & 0xffffffffL) + (f >>> 32); store(mac, macOffset + 12, (int) f);
+
+        h[0] = h0;  h[1] = h1;  h[2] = h2;  h[3] = h3;  h[4] = h4;
+    }
+}
@@ -0,0 +1,279 @@
+package cryptix.alg.poly1305;
+
+import java.nio.ByteBuffer;
+
+import cryptix.Support;
+import cryptix.X;
+
+/**
+ * <p>
+ * A stateful Poly1305.  Key it with init(), then feed the message
+ * through update() in pieces of any size, from arrays or buffers,
+ * and take the MAC with doFinal().  Bytes short of a 16 byte block
+ * at the end of one update() are held over for the next, so a message
+ * fed in 13 byte pieces, or as the scattered buffers of a network
+ * frame, gets the same MAC as one call to
+ * {@link Poly1305#auth(byte[], int, byte[], int, long, byte[], byte[])}
+ * over the whole, without first copying it into one array.
+ * </p><p>
+ * A Poly1305Mac is not thread safe.  Nothing is allocated after
+ * construction;  doFinal() and close() wipe the key material.
+ * </p>
+ *
+ * @see Poly1305Core which does the work
+ */
+public class Poly1305Mac
+{
+    private static final int SCRATCH_LENGTH = 16 * Poly1305.BLOCK_LEN;  // for direct buffers
+
+    private final int[]      r          = new int[Poly1305Core.LIMBS];
+    private final int[]      r5         = new int[Poly1305Core.R5_LIMBS];
+    private final int[]      pow        = new int[Poly1305Core.POW_LENGTH];
+    private final int[]      h          = new int[Poly1305Core.LIMBS];
+    private final byte[]     ekn        = new byte[Poly1305.ENC_NONCE_LEN];
+    private final byte[]     partial    = new byte[Poly1305.BLOCK_LEN];
+    private final byte[]     scratch    = new byte[SCRATCH_LENGTH];
+    private int              held       = 0;     // bytes in partial[]
+    private boolean          keyed      = false;
+
+    public Poly1305Mac() { }
+
+    /**
+     * Key the MAC for a new message.  Anything fed in before is dropped.
+     *
+     * @param ms is a mac-secret of 16 bytes, becomes r (clamped)
+     * @param ekn is the encrypted nonce eK(n) of 16 bytes, using whatever encryption algorithm
+     */
+    public void init(byte[] ms, byte[] ekn)
+    {
+        if (ms == null || ms.length != Poly1305.MAC_SECRET_LEN)
+            throw new RuntimeException("Poly1305 mac secret r not 16");
+        if (ekn == null || ekn.length != Poly1305.ENC_NONCE_LEN)
+            throw new RuntimeException("Poly1305 encrypted nonce ekn not 16");
+
+        Poly1305Core.setKey(r, r5, ms, 0);
+        for (int i = 0; i < pow.length; i++)
+            pow[i] = 0;
+        System.arraycopy(ekn, 0, this.ekn, 0, Poly1305.ENC_NONCE_LEN);
+        for (int i = 0; i < h.length; i++)
+            h[i] = 0;
+        discardPartial();
+        keyed = true;
+    }
+
+    /**
+     * Add the next len bytes of the message.
+     *
+     * @param msg holds the bytes, read from off
+     * @param off is where to start
+     * @param len is the number of bytes, 0 or more
+     */
+    public void update(byte[] msg, int off, int len)
+    {
+        if (!keyed)
+            throw new IllegalStateException("Poly1305Mac not initialised");
+        if (len < 0 || off < 0 || msg.length - off < len)
+            throw new IllegalArgumentException("Poly1305Mac msg params oflow");
+
+        // first top up a block held over from the last call
+        if (held > 0) {
+            int n = Math.min(Poly1305.BLOCK_LEN - held, len);
+            System.arraycopy(msg, off, partial, held, n);
+            held += n;
+            off  += n;
+            len  -= n;
+            if (held < Poly1305.BLOCK_LEN)
+                return;
+            Poly1305Core.blocks1(r, r5, h, partial, 0, Poly1305.BLOCK_LEN);
+            held = 0;
+        }
+
+        // then whole blocks straight from msg
+        final int whole = len & ~(Poly1305.BLOCK_LEN - 1);
+        if (whole > 0) {
+            Poly1305Core.blocks(r, r5, pow, h, msg, off, whole);
+            off += whole;
+            len -= whole;
+        }
+
+        // and keep the rest for next time
+        if (len > 0) {
+            System.arraycopy(msg, off, partial, 0, len);
+            held = len;
+        }
+    }
+
+    /**
+     * Add the remaining() bytes of msg, which may be heap or direct.
+     * Its position advances to its limit.
+     *
+     * @param msg is the input, from position to limit
+     */
+    public void update(ByteBuffer msg)
+    {
+        if (!keyed)
+            throw new IllegalStateException("Poly1305Mac not initialised");
+
+        if (msg.hasArray()) {
+            update(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining());
+            msg.position(msg.limit());
+        } else {
+            while (msg.hasRemaining()) {  // a direct buffer, through the scratch a few blocks at a time
+                int n = Math.min(msg.remaining(), SCRATCH_LENGTH);
+                msg.get(scratch, 0, n);
+                update(scratch, 0, n);
+            }
+            for (int i = 0; i < scratch.length; i++)
+                scratch[i] = 0;
+        }
+    }
+
+    /**
+     * Finish the message, padding any last short block, write the MAC,
+     * and wipe the key.  The MAC needs init() before it can be used again.
+     *
+     * @param mac an array to place the calculated MAC into
+     * @param macOffset where in mac to write the MAC
+     */
+    public void doFinal(byte[] mac, int macOffset)
+    {
+        if (!keyed)
+            throw new IllegalStateException("Poly1305Mac not initialised");
+        if (mac == null || macOffset < 0 || mac.length - macOffset < Poly1305.MAC_LENGTH)
+            throw new IllegalArgumentException("Poly1305Mac mac params oflow");
+
+        if (held > 0)
+            Poly1305Core.blocks1(r, r5, h, partial, 0, held);
+        Poly1305Core.finish(h, mac, macOffset, ekn);
+        close();
+    }
+
+    /**
+     * Wipe r, the nonce, the accumulator and any held bytes.
+     * The MAC needs init() before it can be used again.
+     */
+    public void close()
+    {
+        for (int i = 0; i < r.length; i++)
+            r[i] = 0;
+        for (int i = 0; i < r5.length; i++)
+            r5[i] = 0;
+        for (int i = 0; i < pow.length; i++)
+            pow[i] = 0;
+        for (int i = 0; i < h.length; i++)
+            h[i] = 0;
+        for (int i = 0; i < ekn.length; i++)
+            ekn[i] = 0;
+        discardPartial();
+        keyed = false;
+    }
+
+    private void discardPartial()
+    {
+        for (int i = 0; i < partial.length; i++)
+            partial[i] = 0;
+        held = 0;
+    }
+
+
+////////////////////////////////////////////////////////////////////
+////
+////    Test Code
+////
+
+    /**
+     * Random messages, chopped into random pieces at random offsets,
+     * must get the same MAC as one call to auth().
+     */
+    static String testPieces()
+    {
+        Poly1305Mac poly = new Poly1305Mac();
+        for (int i = 0; i < 200; i++) {
+            byte[] ms  = Support.exampleData(Poly1305.MAC_SECRET_LEN);
+            byte[] ekn = Support.exampleData(Poly1305.ENC_NONCE_LEN);
+            int    len = Support.exampleInt(0, 1000);
+            byte[] msg = Support.exampleData(len);
+
+            byte[] expected = new byte[Poly1305.MAC_LENGTH];
+            Poly1305.auth(expected, 0, msg, 0, len, ekn, ms);
+
+            final int gap = 7;
+            byte[] in  = new byte[len + gap];
+            System.arraycopy(msg, 0, in, gap, len);
+
+            poly.init(ms, ekn);
+            int piece = (i % 4 == 0) ? 13 : Support.exampleInt(1, 100);
+            for (int done = 0; done < len; ) {
+                int n = Math.min(piece, len - done);
+                poly.update(in, gap + done, n);
+                done += n;
+            }
+            byte[] got = new byte[Poly1305.MAC_LENGTH + gap];
+            poly.doFinal(got, gap);
+
+            if (!X.ctEquals(expected, 0, got, gap, Poly1305.MAC_LENGTH))
+                throw new RuntimeException("Poly1305Mac pieces of " + piece + " differ on len " + len);
+        }
+        return "Pieces";
+    }
+
+    /**
+     * The same, over a scatter of heap, sliced and direct buffers.
+     */
+    static String testBuffers()
+    {
+        Poly1305Mac poly = new Poly1305Mac();
+        for (int i = 0; i < 100; i++) {
+            byte[] ms  = Support.exampleData(Poly1305.MAC_SECRET_LEN);
+            byte[] ekn = Support.exampleData(Poly1305.ENC_NONCE_LEN);
+            int    len = Support.exampleInt(0, 3000);
+            byte[] msg = Support.exampleData(len);
+
+            byte[] expected = new byte[Poly1305.MAC_LENGTH];
+            Poly1305.auth(expected, 0, msg, 0, len, ekn, ms);
+
+            poly.init(ms, ekn);
+            for (int done = 0, k = 0; done < len; k++) {
+                int n = Math.min(Support.exampleInt(1, 700), len - done);
+                ByteBuffer b;
+                switch (k % 3) {
+                case 0:
+                    b = ByteBuffer.allocateDirect(n + 5);
+                    b.position(5);
+                    b.put(msg, done, n).position(5);
+                    break;
+                case 1:
+                    b = ByteBuffer.wrap(new byte[n + 9], 4, n).slice();
+                    b.put(msg, done, n).flip();
+                    break;
+                default:
+                    b = ByteBuffer.wrap(msg, done, n);
+                    break;
+                }
+                poly.update(b);
+                if (b.hasRemaining())
+                    throw new RuntimeException("Poly1305Mac left buffer unread");
+                done += n;
+            }
+            byte[] got = new byte[Poly1305.MAC_LENGTH];
+            poly.doFinal(got, 0);
+
+            if (!X.ctEquals(expected, got))
+                throw new RuntimeException("Poly1305Mac buffers differ on len " + len);
+        }
+        return "Buffers";
+    }
+
+    public static String selfTest()
+    {
+        String s = "Poly1305Mac: ";
+        s += testPieces() + ". ";
+        s += testBuffers() + ". ";
+        return s + "good.";
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(selfTest());
+    }
+}
@@ -124,7 +124,21 @@ public class Poly1305Test
         Poly1305.auth(out, 0, tc.message, 0, tc.message.length, tc.nonce, tc.ms);
         
         if (!X.ctEquals(out, tc.expectedMac)) {
-            new RuntimeException("Mismatched output " + tc + "\nMAC calc:   " + X.data2hex(out) + "\n");
+            throw new RuntimeException("Mismatched output " + tc + "\nMAC calc:   " + X.data2hex(out) + "\n");
+        }
+
+        // and again, fed in pieces of one or two blocks through the context calls
+        int[][] context = Poly1305.init_context(tc.ms);
+        int off = 0;
+        for (int piece = Poly1305.BLOCK_LEN; off < tc.message.length; piece ^= 3 * Poly1305.BLOCK_LEN) {
+            int len = Math.min(piece, tc.message.length - off);
+            Poly1305.blocks(context, tc.message, off, len);
+            off += len;
+        }
+        byte[] out2 = new byte[Poly1305.MAC_LENGTH];
+        Poly1305.finish(context, out2, 0, tc.nonce);
+        if (!X.ctEquals(out2, tc.expectedMac)) {
+            throw new RuntimeException("Mismatched incremental output " + tc + "\nMAC calc:   " + X.data2hex(out2) + "\n");
         }
     }
     
@@ -138,10 +152,47 @@ public class Poly1305Test
             s += "\n      " + tv[i].title;
             runTestCase(tv[i]);
         }
+        s += "\n      " + testCore();
         s += "\n Tests complete.";
         return s;
     }
     
+    /**
+     * The 26 bit limbs of Poly1305Core against the byte limbs of the
+     * reference, on random keys and messages, and on all-ones keys,
+     * nonces and messages, which push every carry.
+     */
+    static String testCore()
+    {
+        java.util.Random rand = new java.util.Random();
+        for (int i = 0; i < 500; i++)
+        {
+            boolean ones = (i % 10 == 0);
+            byte[] ms  = new byte[Poly1305.MAC_SECRET_LEN];
+            byte[] ekn = new byte[Poly1305.ENC_NONCE_LEN];
+            byte[] msg = new byte[rand.nextInt(i % 2 == 0 ? 300 : 3000)];
+            if (ones) {
+                java.util.Arrays.fill(ms,  (byte) 0xff);
+                java.util.Arrays.fill(ekn, (byte) 0xff);
+                java.util.Arrays.fill(msg, (byte) 0xff);
+            } else {
+                rand.nextBytes(ms);
+                rand.nextBytes(ekn);
+                rand.nextBytes(msg);
+            }
+
+            byte[] want = new byte[Poly1305.MAC_LENGTH];
+            byte[] got  = new byte[Poly1305.MAC_LENGTH];
+            Poly1305.auth_ref(want, 0, msg, 0, msg.length, ekn, ms);
+            Poly1305.auth(got, 0, msg, 0, msg.length, ekn, ms);
+            if (!X.ctEquals(want, got))
+                throw new RuntimeException("Poly1305Core differs from reference, len " + msg.length
+                        + "\n  ms  " + X.data2hex(ms) + "\n  ekn " + X.data2hex(ekn)
+                        + "\n  want " + X.data2hex(want) + "\n  got  " + X.data2hex(got));
+        }
+        return "Poly1305Core against reference";
+    }
+
     public static int vv = 2;
     
     public static void main(String[] args)